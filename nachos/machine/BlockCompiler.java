@@ -0,0 +1,943 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import nachos.machine.Processor.DecodedInstruction;
+import nachos.machine.Processor.Mips;
+import nachos.security.Privilege;
+
+/**
+ * Compiles a basic block of MIPS instructions into a JVM class, so that the
+ * host JIT can optimize hot user code the same way it optimizes Java code.
+ *
+ * <p>
+ * The generated class extends <tt>Processor.CompiledBlock</tt>. Its
+ * <tt>run()</tt> method keeps every register the block touches in a local
+ * variable, and writes them back to the register array when the block
+ * finishes, when a store invalidates translated code, or when an instruction
+ * throws. Loads, stores and syscalls call back into the processor, so address
+ * translation and exceptions are exactly those of the interpreter, and the
+ * delayed load and PC are left just as the interpreter would have left them
+ * at the faulting instruction.
+ *
+ * <p>
+ * The class file is written by hand, at version 49 so that no stack map
+ * frames are needed.
+ */
+final class BlockCompiler {
+	/**
+	 * Compile a basic block.
+	 *
+	 * @param block the decoded instructions of the block.
+	 * @param privilege the privilege needed to define the generated class.
+	 * @return the compiled block, or <tt>null</tt> if the block contains an
+	 * instruction the compiler doesn't handle.
+	 */
+	static Processor.CompiledBlock compile(DecodedInstruction[] block,
+			Privilege privilege) {
+		int[] words = new int[block.length];
+		for (int i = 0; i < block.length; i++) {
+			if (!supported(block[i]))
+				return null;
+			words[i] = block[i].value;
+		}
+
+		/*
+		 * The generated code finds every address from the PC, so it depends
+		 * only on the instruction words. Classes are never unloaded, so the
+		 * same block, whether loaded again or at another address, reuses the
+		 * class compiled for it the first time.
+		 */
+		Words key = new Words(words);
+		Class<?> cls = compiledClasses.get(key);
+
+		try {
+			if (cls == null) {
+				String name = "nachos/machine/CompiledBlock" + (numCompiled++);
+				final byte[] classFile = new BlockCompiler(name, block)
+						.assemble();
+
+				// defining a class is a privileged operation
+				cls = (Class<?>) privilege.doPrivileged(
+						new PrivilegedExceptionAction<Class<?>>() {
+							public Class<?> run() throws IllegalAccessException {
+								return MethodHandles.lookup().defineClass(
+										classFile);
+							}
+						});
+				compiledClasses.put(key, cls);
+			}
+
+			return (Processor.CompiledBlock) cls.getDeclaredConstructor()
+					.newInstance();
+		}
+		catch (Exception e) {
+			Lib.assertNotReached("could not load compiled block: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * The instruction words of a block, as a key for
+	 * <tt>compiledClasses</tt>.
+	 */
+	private static class Words {
+		Words(int[] words) {
+			this.words = words;
+		}
+
+		public boolean equals(Object o) {
+			return (o instanceof Words)
+					&& Arrays.equals(words, ((Words) o).words);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(words);
+		}
+
+		private final int[] words;
+	}
+
+	private static boolean supported(DecodedInstruction decoded) {
+		if (decoded.test(Mips.OVERFLOW))
+			return false;
+
+		switch (decoded.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.MULT:
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+		case Mips.SLT:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.NOR:
+		case Mips.XOR:
+		case Mips.LUI:
+		case Mips.MFLO:
+		case Mips.MFHI:
+		case Mips.MTLO:
+		case Mips.MTHI:
+		case Mips.LOAD:
+		case Mips.STORE:
+		case Mips.JUMP:
+		case Mips.SYSCALL:
+			return true;
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			return !decoded.test(Mips.LINK);
+		default:
+			return false;
+		}
+	}
+
+	private BlockCompiler(String name, DecodedInstruction[] block) {
+		this.name = name;
+		this.block = block;
+
+		// every register the block touches lives in a local
+		for (int i = 0; i < block.length; i++) {
+			DecodedInstruction decoded = block[i];
+
+			used[decoded.rs] = true;
+			used[decoded.rt] = true;
+
+			switch (decoded.operation) {
+			case Mips.MULT:
+				written[Processor.regLo] = written[Processor.regHi] = true;
+				break;
+			case Mips.MFLO:
+			case Mips.MTLO:
+				written[Processor.regLo] |= decoded.operation == Mips.MTLO;
+				used[Processor.regLo] = true;
+				break;
+			case Mips.MFHI:
+			case Mips.MTHI:
+				written[Processor.regHi] |= decoded.operation == Mips.MTHI;
+				used[Processor.regHi] = true;
+				break;
+			}
+
+			if (decoded.test(Mips.DST) || decoded.operation == Mips.LOAD)
+				written[decoded.dstReg] = true;
+		}
+
+		written[0] = false;
+		for (int reg = 0; reg < used.length; reg++)
+			used[reg] = (used[reg] || written[reg]) && reg != 0;
+	}
+
+	private byte[] assemble() {
+		int thisClass = classConstant(name);
+		int superClass = classConstant(compiledBlock);
+
+		// constructor
+		int initName = utf8Constant("<init>");
+		int initType = utf8Constant("()V");
+		int superInit = methodConstant(compiledBlock, "<init>", "()V");
+		emit(ALOAD_0);
+		emit(INVOKESPECIAL);
+		emit2(superInit);
+		emit(RETURN);
+		byte[] initCode = takeCode();
+
+		// run()
+		int runName = utf8Constant("run");
+		int runType = utf8Constant("([I)I");
+		assembleRun();
+		byte[] runCode = takeCode();
+
+		int codeName = utf8Constant("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			out.writeShort(numConstants);
+			out.write(constants.toByteArray());
+			out.writeShort(ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(2); // methods
+
+			writeMethod(out, initName, initType, codeName, 1, 1, initCode, null);
+			writeMethod(out, runName, runType, codeName, maxStack, maxLocals,
+					runCode, exceptionTable);
+
+			out.writeShort(0); // attributes
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static void writeMethod(DataOutputStream out, int name, int type,
+			int codeName, int maxStack, int maxLocals, byte[] code,
+			int[] exceptionTable) throws IOException {
+		int handlers = (exceptionTable == null) ? 0 : exceptionTable.length / 4;
+
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(name);
+		out.writeShort(type);
+		out.writeShort(1); // attributes
+
+		out.writeShort(codeName);
+		out.writeInt(12 + code.length + handlers * 8);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(code.length);
+		out.write(code);
+		out.writeShort(handlers);
+		for (int i = 0; i < handlers * 4; i++)
+			out.writeShort(exceptionTable[i]);
+		out.writeShort(0); // attributes
+	}
+
+	/**
+	 * Generate <tt>int run(int[] registers)</tt>. The method returns the
+	 * number of instructions it completed; if it throws, it stores that
+	 * number in <tt>completed</tt> first.
+	 */
+	private void assembleRun() {
+		// load the starting PC and the registers into locals
+		emitLoadRegister(Processor.regPC);
+		emitStore(PC);
+		for (int local = INDEX; local <= TEMP; local++) {
+			if (local != PC) {
+				emitInt(0);
+				emitStore(local);
+			}
+		}
+		for (int reg = 0; reg < used.length; reg++) {
+			if (used[reg]) {
+				emitLoadRegister(reg);
+				emitStore(REGISTERS + reg);
+			}
+		}
+
+		int tryStart = length;
+
+		Label exit = new Label();
+		for (int i = 0; i < block.length; i++)
+			assembleInstruction(i, exit);
+
+		// fall off the end of the block
+		DecodedInstruction last = block[block.length - 1];
+		emitInt(block.length);
+		emitStore(INDEX);
+		if (!last.test(Mips.BRANCH))
+			emitSetNextPC(block.length + 1);
+
+		int tryEnd = length;
+
+		bind(exit);
+		emitWriteBack();
+		emitLoad(INDEX);
+		emit(IRETURN);
+
+		// an instruction threw; the PC is still that instruction's
+		int handler = length;
+		emit(ASTORE);
+		emit(THROWN);
+		emit(ALOAD_0);
+		emitLoad(INDEX);
+		emit(PUTFIELD);
+		emit2(fieldConstant(compiledBlock, "completed", "I"));
+		emitLoad(PC);
+		emitLoad(INDEX);
+		emitInt(2);
+		emit(ISHL);
+		emit(IADD);
+		emitInt(4);
+		emit(IADD);
+		emitStore(NEXT_PC);
+		emitWriteBack();
+		emit(ALOAD);
+		emit(THROWN);
+		emit(ATHROW);
+
+		exceptionTable = new int[] { tryStart, tryEnd, handler, 0 };
+	}
+
+	/**
+	 * Generate the code for one instruction. Like the interpreter, each
+	 * instruction reads its sources and does its memory access first, then
+	 * completes the previous instruction's delayed load, then writes its own
+	 * destination.
+	 */
+	private void assembleInstruction(int i, Label exit) {
+		DecodedInstruction decoded = block[i];
+
+		int rs = decoded.rs, rt = decoded.rt, dstReg = decoded.dstReg;
+		int imm = decoded.imm;
+		boolean src2imm = decoded.test(Mips.SRC2IMM);
+
+		// the address of the delay slot, if this is a branch
+		int nextPC = 4 * (i + 1);
+
+		switch (decoded.operation) {
+		case Mips.LOAD:
+			emitIndex(i);
+			emit(ALOAD_0);
+			emitAddress(rs, imm);
+			emitInt(decoded.size);
+			emit(INVOKEVIRTUAL);
+			emit2(methodConstant(compiledBlock, "readMem", "(II)I"));
+			emitStore(TEMP);
+			emitFinishLoad(i);
+			emitLoad(TEMP);
+			emitStore(LOAD_VALUE);
+			emitInt(dstReg);
+			emitStore(LOAD_TARGET);
+			return;
+
+		case Mips.STORE:
+			emitIndex(i);
+			emit(ALOAD_0);
+			emitAddress(rs, imm);
+			emitInt(decoded.size);
+			emitRead(rt);
+			emit(INVOKEVIRTUAL);
+			emit2(methodConstant(compiledBlock, "writeMem", "(III)V"));
+			emitFinishLoad(i);
+
+			// leave if the store overwrote translated code
+			if (i + 1 < block.length) {
+				Label next = new Label();
+				emit(ALOAD_0);
+				emit(INVOKEVIRTUAL);
+				emit2(methodConstant(compiledBlock, "blocksInvalidated", "()Z"));
+				emitJump(IFEQ, next);
+				emitInt(i + 1);
+				emitStore(INDEX);
+				emitSetNextPC(i + 2);
+				emitJump(GOTO, exit);
+				bind(next);
+			}
+			return;
+
+		case Mips.SYSCALL:
+			emitIndex(i);
+			emit(ALOAD_0);
+			emit(INVOKEVIRTUAL);
+			emit2(methodConstant(compiledBlock, "syscall", "()V"));
+			return;
+
+		case Mips.MULT:
+			emitRead(rs);
+			emit(I2L);
+			if (decoded.test(Mips.UNSIGNED))
+				emitUnsignedLong();
+			emitRead(rt);
+			emit(I2L);
+			if (decoded.test(Mips.UNSIGNED))
+				emitUnsignedLong();
+			emit(LMUL);
+			emit(DUP2);
+			emit(L2I);
+			emitStore(REGISTERS + Processor.regLo);
+			emitInt(32);
+			emit(LUSHR);
+			emit(L2I);
+			emitStore(REGISTERS + Processor.regHi);
+			emitFinishLoad(i);
+			return;
+
+		case Mips.MTLO:
+		case Mips.MTHI:
+			emitRead(rs);
+			emitStore(REGISTERS + (decoded.operation == Mips.MTLO
+					? Processor.regLo : Processor.regHi));
+			emitFinishLoad(i);
+			return;
+
+		case Mips.JUMP:
+			if (decoded.format == Mips.JFMT) {
+				emitLoad(PC);
+				emitInt(nextPC);
+				emit(IADD);
+				emitInt(0xF0000000);
+				emit(IAND);
+				emitInt(decoded.target << 2);
+				emit(IOR);
+			}
+			else {
+				emitRead(rs);
+			}
+			emitStore(NEXT_PC);
+			emitFinishLoad(i);
+
+			if (decoded.test(Mips.DST) && dstReg != 0) {
+				emitLoad(PC);
+				emitInt(nextPC + 4);
+				emit(IADD);
+				emitStore(REGISTERS + dstReg);
+			}
+			return;
+
+		case Mips.BEQ:
+		case Mips.BNE:
+		case Mips.BLEZ:
+		case Mips.BGTZ:
+		case Mips.BLTZ:
+		case Mips.BGEZ:
+			Label taken = new Label(), done = new Label();
+			emitRead(rs);
+			switch (decoded.operation) {
+			case Mips.BEQ:
+				emitRead(rt);
+				emitJump(IF_ICMPEQ, taken);
+				break;
+			case Mips.BNE:
+				emitRead(rt);
+				emitJump(IF_ICMPNE, taken);
+				break;
+			case Mips.BLEZ:
+				emitJump(IFLE, taken);
+				break;
+			case Mips.BGTZ:
+				emitJump(IFGT, taken);
+				break;
+			case Mips.BLTZ:
+				emitJump(IFLT, taken);
+				break;
+			case Mips.BGEZ:
+				emitJump(IFGE, taken);
+				break;
+			}
+			emitLoad(PC);
+			emitInt(nextPC + 4);
+			emit(IADD);
+			emitJump(GOTO, done);
+			bind(taken);
+			emitLoad(PC);
+			emitInt(nextPC + (imm << 2));
+			emit(IADD);
+			bind(done);
+			emitStore(NEXT_PC);
+			emitFinishLoad(i);
+			return;
+		}
+
+		// everything else computes a value for dstReg
+		if (dstReg == 0) {
+			emitFinishLoad(i);
+			return;
+		}
+
+		switch (decoded.operation) {
+		case Mips.ADD:
+		case Mips.SUB:
+		case Mips.AND:
+		case Mips.OR:
+		case Mips.XOR:
+		case Mips.NOR:
+			emitRead(rs);
+			if (src2imm)
+				emitInt(imm);
+			else
+				emitRead(rt);
+
+			switch (decoded.operation) {
+			case Mips.ADD:
+				emit(IADD);
+				break;
+			case Mips.SUB:
+				emit(ISUB);
+				break;
+			case Mips.AND:
+				emit(IAND);
+				break;
+			case Mips.OR:
+				emit(IOR);
+				break;
+			case Mips.XOR:
+				emit(IXOR);
+				break;
+			case Mips.NOR:
+				emit(IOR);
+				emitInt(-1);
+				emit(IXOR);
+				break;
+			}
+			break;
+
+		case Mips.LUI:
+			emitInt(imm << 16);
+			break;
+
+		case Mips.SLT:
+			// flipping the sign bits turns an unsigned compare into a signed
+			boolean unsigned = decoded.test(Mips.UNSIGNED);
+			emitRead(rs);
+			if (unsigned) {
+				emitInt(0x80000000);
+				emit(IXOR);
+			}
+			if (src2imm) {
+				emitInt(unsigned ? imm ^ 0x80000000 : imm);
+			}
+			else {
+				emitRead(rt);
+				if (unsigned) {
+					emitInt(0x80000000);
+					emit(IXOR);
+				}
+			}
+			Label less = new Label(), compared = new Label();
+			emitJump(IF_ICMPLT, less);
+			emitInt(0);
+			emitJump(GOTO, compared);
+			bind(less);
+			emitInt(1);
+			bind(compared);
+			break;
+
+		// shifts operate on the sign-extended 64-bit value of rt
+		case Mips.SLL:
+		case Mips.SRA:
+		case Mips.SRL:
+			emitRead(rt);
+			if (decoded.operation == Mips.SRL)
+				emit(I2L);
+			if (decoded.test(Mips.SRC1SH)) {
+				emitInt(decoded.sh);
+			}
+			else {
+				emitRead(rs);
+				emitInt(0x1F);
+				emit(IAND);
+			}
+			switch (decoded.operation) {
+			case Mips.SLL:
+				emit(ISHL);
+				break;
+			case Mips.SRA:
+				emit(ISHR);
+				break;
+			case Mips.SRL:
+				emit(LUSHR);
+				emit(L2I);
+				break;
+			}
+			break;
+
+		case Mips.MFLO:
+			emitLoad(REGISTERS + Processor.regLo);
+			break;
+		case Mips.MFHI:
+			emitLoad(REGISTERS + Processor.regHi);
+			break;
+
+		default:
+			Lib.assertNotReached();
+		}
+
+		emitStore(TEMP);
+		emitFinishLoad(i);
+		emitLoad(TEMP);
+		emitStore(REGISTERS + dstReg);
+	}
+
+	/**
+	 * Complete the delayed load scheduled by the instruction before
+	 * instruction <i>i</i>, if it was a load.
+	 */
+	private void emitFinishLoad(int i) {
+		if (i == 0 || block[i - 1].operation != Mips.LOAD
+				|| block[i - 1].dstReg == 0)
+			return;
+
+		emitLoad(LOAD_VALUE);
+		emitStore(REGISTERS + block[i - 1].dstReg);
+		emitInt(0);
+		emitStore(LOAD_TARGET);
+	}
+
+	/**
+	 * Store the register locals, the PC, and any pending delayed load back
+	 * into the processor. <tt>INDEX</tt> is the instruction to continue at,
+	 * and <tt>NEXT_PC</tt> the instruction after that.
+	 */
+	private void emitWriteBack() {
+		for (int reg = 0; reg < written.length; reg++) {
+			if (written[reg]) {
+				emit(ALOAD_1);
+				emitInt(reg);
+				emitLoad(REGISTERS + reg);
+				emit(IASTORE);
+			}
+		}
+
+		emit(ALOAD_1);
+		emitInt(Processor.regPC);
+		emitLoad(PC);
+		emitLoad(INDEX);
+		emitInt(2);
+		emit(ISHL);
+		emit(IADD);
+		emit(IASTORE);
+
+		emit(ALOAD_1);
+		emitInt(Processor.regNextPC);
+		emitLoad(NEXT_PC);
+		emit(IASTORE);
+
+		Label noLoad = new Label();
+		emitLoad(LOAD_TARGET);
+		emitJump(IFEQ, noLoad);
+		emit(ALOAD_0);
+		emitLoad(LOAD_TARGET);
+		emitLoad(LOAD_VALUE);
+		emit(INVOKEVIRTUAL);
+		emit2(methodConstant(compiledBlock, "delayedLoad", "(II)V"));
+		bind(noLoad);
+	}
+
+	/** Set <tt>NEXT_PC</tt> to the address of instruction <i>i</i>. */
+	private void emitSetNextPC(int i) {
+		emitLoad(PC);
+		emitInt(4 * i);
+		emit(IADD);
+		emitStore(NEXT_PC);
+	}
+
+	/** Record that instruction <i>i</i> is the one that may throw. */
+	private void emitIndex(int i) {
+		emitInt(i);
+		emitStore(INDEX);
+	}
+
+	private void emitAddress(int rs, int imm) {
+		emitRead(rs);
+		if (imm != 0) {
+			emitInt(imm);
+			emit(IADD);
+		}
+	}
+
+	private void emitUnsignedLong() {
+		emit(LDC2_W);
+		emit2(longConstant(0xFFFFFFFFL));
+		emit(LAND);
+	}
+
+	private void emitRead(int reg) {
+		if (reg == 0)
+			emitInt(0);
+		else
+			emitLoad(REGISTERS + reg);
+	}
+
+	private void emitLoadRegister(int reg) {
+		emit(ALOAD_1);
+		emitInt(reg);
+		emit(IALOAD);
+	}
+
+	private void emitLoad(int local) {
+		emit(ILOAD);
+		emit(local);
+	}
+
+	private void emitStore(int local) {
+		emit(ISTORE);
+		emit(local);
+	}
+
+	private void emitInt(int value) {
+		if (value >= -1 && value <= 5) {
+			emit(ICONST_0 + value);
+		}
+		else if (value == (byte) value) {
+			emit(BIPUSH);
+			emit(value);
+		}
+		else if (value == (short) value) {
+			emit(SIPUSH);
+			emit2(value);
+		}
+		else {
+			emit(LDC_W);
+			emit2(intConstant(value));
+		}
+	}
+
+	private void emitJump(int opcode, Label label) {
+		int from = length;
+		emit(opcode);
+		emit2(0);
+		label.fixups.add(from);
+		if (label.position >= 0)
+			label.patch(from);
+	}
+
+	private void bind(Label label) {
+		label.position = length;
+		for (int from : label.fixups)
+			label.patch(from);
+	}
+
+	private void emit(int b) {
+		if (length == code.length) {
+			byte[] grown = new byte[code.length * 2];
+			System.arraycopy(code, 0, grown, 0, length);
+			code = grown;
+		}
+		code[length++] = (byte) b;
+	}
+
+	private void emit2(int value) {
+		emit(value >> 8);
+		emit(value);
+	}
+
+	private byte[] takeCode() {
+		byte[] result = new byte[length];
+		System.arraycopy(code, 0, result, 0, length);
+		length = 0;
+		return result;
+	}
+
+	private class Label {
+		void patch(int from) {
+			int offset = position - from;
+			Lib.assertTrue(offset == (short) offset);
+			code[from + 1] = (byte) (offset >> 8);
+			code[from + 2] = (byte) offset;
+		}
+
+		int position = -1;
+
+		ArrayList<Integer> fixups = new ArrayList<Integer>();
+	}
+
+	private int utf8Constant(String value) {
+		Integer index = constantIndex.get("U" + value);
+		if (index != null)
+			return index;
+
+		try {
+			constantsOut.writeByte(1);
+			constantsOut.writeUTF(value);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		return addConstant("U" + value, 1);
+	}
+
+	private int classConstant(String className) {
+		int utf8 = utf8Constant(className);
+		return constant("C" + className, 7, 2, utf8);
+	}
+
+	private int methodConstant(String owner, String name, String type) {
+		return memberConstant(10, owner, name, type);
+	}
+
+	private int fieldConstant(String owner, String name, String type) {
+		return memberConstant(9, owner, name, type);
+	}
+
+	private int memberConstant(int tag, String owner, String name, String type) {
+		int cls = classConstant(owner);
+		int nameIndex = utf8Constant(name), typeIndex = utf8Constant(type);
+		int nameAndType = constant("N" + name + " " + type, 12, 4,
+				(nameIndex << 16) | typeIndex);
+		return constant(tag + owner + "." + name + " " + type, tag, 4,
+				(cls << 16) | nameAndType);
+	}
+
+	private int intConstant(int value) {
+		return constant("I" + value, 3, 4, value);
+	}
+
+	private int longConstant(long value) {
+		return constant("J" + value, 5, 8, value);
+	}
+
+	/**
+	 * Return the index of a constant pool entry, adding it if needed. Every
+	 * entry this class uses other than a UTF-8 string is a tag followed by a
+	 * big-endian <i>size</i>-byte <i>value</i>.
+	 */
+	private int constant(String key, int tag, int size, long value) {
+		Integer index = constantIndex.get(key);
+		if (index != null)
+			return index;
+
+		try {
+			constantsOut.writeByte(tag);
+			for (int i = size - 1; i >= 0; i--)
+				constantsOut.writeByte((int) (value >> (i * 8)));
+		}
+		catch (IOException e) {
+			Lib.assertNotReached();
+		}
+
+		return addConstant(key, (tag == 5) ? 2 : 1);
+	}
+
+	/** Long constants take up two slots in the constant pool. */
+	private int addConstant(String key, int slots) {
+		int index = numConstants;
+		numConstants += slots;
+		constantIndex.put(key, index);
+		return index;
+	}
+
+	private static int numCompiled = 0;
+
+	/** The class compiled for each block so far. */
+	private static HashMap<Words, Class<?>> compiledClasses =
+			new HashMap<Words, Class<?>>();
+
+	private static final String compiledBlock = "nachos/machine/Processor$CompiledBlock";
+
+	private final String name;
+
+	private final DecodedInstruction[] block;
+
+	/** Registers kept in locals, and the subset of those the block writes. */
+	private boolean[] used = new boolean[Processor.regHi + 1],
+			written = new boolean[Processor.regHi + 1];
+
+	private ByteArrayOutputStream constants = new ByteArrayOutputStream();
+
+	private DataOutputStream constantsOut = new DataOutputStream(constants);
+
+	private HashMap<String, Integer> constantIndex = new HashMap<String, Integer>();
+
+	private int numConstants = 1;
+
+	private byte[] code = new byte[256];
+
+	private int length = 0;
+
+	private int[] exceptionTable;
+
+	// local variables of run()
+	private static final int
+		INDEX		= 2,	// the instruction that may throw
+	    PC			= 3,	// the PC of the first instruction
+	    LOAD_TARGET	= 4,
+	    LOAD_VALUE	= 5,
+	    NEXT_PC		= 6,
+	    TEMP		= 7,
+	    THROWN		= 8,
+	    REGISTERS	= 9;	// register r lives in local REGISTERS+r
+
+	private static final int maxStack = 8;
+
+	private static final int maxLocals = REGISTERS + Processor.regHi + 1;
+
+	private static final int
+		ACC_PUBLIC	= 0x0001,
+	    ACC_FINAL	= 0x0010,
+	    ACC_SUPER	= 0x0020;
+
+	private static final int
+		ICONST_0	= 0x03,
+	    BIPUSH		= 0x10,
+	    SIPUSH		= 0x11,
+	    LDC_W		= 0x13,
+	    LDC2_W		= 0x14,
+	    ILOAD		= 0x15,
+	    ALOAD		= 0x19,
+	    ALOAD_0		= 0x2a,
+	    ALOAD_1		= 0x2b,
+	    IALOAD		= 0x2e,
+	    ISTORE		= 0x36,
+	    ASTORE		= 0x3a,
+	    IASTORE		= 0x4f,
+	    DUP2		= 0x5c,
+	    IADD		= 0x60,
+	    ISUB		= 0x64,
+	    LMUL		= 0x69,
+	    ISHL		= 0x78,
+	    ISHR		= 0x7a,
+	    LUSHR		= 0x7d,
+	    IAND		= 0x7e,
+	    LAND		= 0x7f,
+	    IOR			= 0x80,
+	    IXOR		= 0x82,
+	    I2L			= 0x85,
+	    L2I			= 0x88,
+	    IFEQ		= 0x99,
+	    IFLT		= 0x9b,
+	    IFGE		= 0x9c,
+	    IFGT		= 0x9d,
+	    IFLE		= 0x9e,
+	    IF_ICMPEQ	= 0x9f,
+	    IF_ICMPNE	= 0xa0,
+	    IF_ICMPLT	= 0xa1,
+	    GOTO		= 0xa7,
+	    IRETURN		= 0xac,
+	    RETURN		= 0xb1,
+	    PUTFIELD	= 0xb5,
+	    INVOKEVIRTUAL	= 0xb6,
+	    INVOKESPECIAL	= 0xb7,
+	    ATHROW		= 0xbf;
+}
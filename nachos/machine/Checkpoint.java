@@ -0,0 +1,141 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads and writes checkpoints of the simulated hardware, for
+ * <tt>Privilege.MachinePrivilege.checkpoint()</tt> and
+ * <tt>restoreCheckpoint()</tt>.
+ *
+ * <p>
+ * A checkpoint holds the statistics, the state of the random number
+ * generator, and the processor's registers, TLB and physical memory. It
+ * cannot hold anything that lives in Java objects of the kernel: threads and
+ * their stacks, pending interrupt handlers, page tables and open files.
+ */
+final class Checkpoint {
+	/**
+	 * Prevent instantiation.
+	 */
+	private Checkpoint() {
+	}
+
+	static void write(DataOutputStream out, Stats stats) throws IOException {
+		out.writeInt(magic);
+		out.writeInt(version);
+
+		out.writeLong(stats.totalTicks);
+		out.writeLong(stats.kernelTicks);
+		out.writeLong(stats.userTicks);
+		out.writeInt(stats.numDiskReads);
+		out.writeInt(stats.numDiskWrites);
+		out.writeInt(stats.numConsoleReads);
+		out.writeInt(stats.numConsoleWrites);
+		out.writeInt(stats.numPageFaults);
+		out.writeInt(stats.numTLBMisses);
+		out.writeInt(stats.numCOFFReads);
+		out.writeInt(stats.numSwapReads);
+		out.writeInt(stats.numSwapWrites);
+		out.writeInt(stats.numPacketsSent);
+		out.writeInt(stats.numPacketsReceived);
+
+		out.writeLong(Lib.getRandomState());
+
+		Processor processor = Machine.processor();
+		out.writeBoolean(processor != null);
+		if (processor != null)
+			processor.checkpoint(out);
+	}
+
+	static void read(DataInputStream in, Stats stats) throws IOException {
+		if (in.readInt() != magic || in.readInt() != version)
+			throw new IOException("not a checkpoint");
+
+		stats.totalTicks = in.readLong();
+		stats.kernelTicks = in.readLong();
+		stats.userTicks = in.readLong();
+		stats.numDiskReads = in.readInt();
+		stats.numDiskWrites = in.readInt();
+		stats.numConsoleReads = in.readInt();
+		stats.numConsoleWrites = in.readInt();
+		stats.numPageFaults = in.readInt();
+		stats.numTLBMisses = in.readInt();
+		stats.numCOFFReads = in.readInt();
+		stats.numSwapReads = in.readInt();
+		stats.numSwapWrites = in.readInt();
+		stats.numPacketsSent = in.readInt();
+		stats.numPacketsReceived = in.readInt();
+
+		Lib.setRandomState(in.readLong());
+
+		Processor processor = Machine.processor();
+		if (in.readBoolean() != (processor != null))
+			throw new IOException("checkpoint is for a different machine");
+		if (processor != null)
+			processor.restoreCheckpoint(in);
+	}
+
+	/**
+	 * Test that a checkpoint restores what it saved. Take a checkpoint,
+	 * change the statistics, the random number generator and the processor,
+	 * restore the checkpoint, and check that a second checkpoint is the same
+	 * as the first. Restoring clears all of memory, so the machine only runs
+	 * this test when the <tt>k</tt> debug flag is set.
+	 *
+	 * @param stats the machine's statistics.
+	 */
+	static void selfTest(Stats stats) {
+		byte[] saved = save(stats);
+
+		stats.totalTicks += 1000;
+		stats.numPageFaults++;
+		Lib.setRandomState(Lib.getRandomState() ^ 1);
+
+		Processor processor = Machine.processor();
+		if (processor != null) {
+			processor.writeRegister(Processor.regV0,
+					~processor.readRegister(Processor.regV0));
+
+			byte[] data = new byte[1];
+			processor.readPhysicalMemory(0, data, 0, 1);
+			data[0] = (byte) ~data[0];
+			processor.writePhysicalMemory(0, data, 0, 1);
+		}
+
+		Lib.assertTrue(!Arrays.equals(save(stats), saved),
+				"checkpoint missed a change");
+
+		try {
+			read(new DataInputStream(new ByteArrayInputStream(saved)), stats);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not restore checkpoint: " + e);
+		}
+
+		Lib.assertTrue(Arrays.equals(save(stats), saved),
+				"checkpoint did not restore the machine");
+	}
+
+	private static byte[] save(Stats stats) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(new DataOutputStream(bytes), stats);
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not write checkpoint: " + e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/** "NCKP" */
+	private static final int magic = 0x4E434B50;
+
+	private static final int version = 1;
+}
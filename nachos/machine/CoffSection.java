@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -178,7 +177,7 @@ public class CoffSection {
 		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
 		int pageSize = Processor.pageSize;
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
 		int initlen;
@@ -194,12 +193,20 @@ public class CoffSection {
 		else
 			initlen = pageSize;
 
-		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+		processor.zeroPage(ppn);
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		if (initlen > 0) {
+			if (pageBuffer == null)
+				pageBuffer = new byte[pageSize];
+
+			Lib.strictReadFile(file, faddr, pageBuffer, 0, initlen);
+			processor.writePhysicalMemory(paddr, pageBuffer, 0, initlen);
+		}
 	}
 
+	/** The buffer <tt>loadPage()</tt> reads a page into, once needed. */
+	private byte[] pageBuffer = null;
+
 	/** The COFF object to which this section belongs. */
 	protected Coff coff;
 
@@ -0,0 +1,272 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A log of the inputs that make a Nachos run nondeterministic: bytes typed at
+ * the console, packets arriving from the network, and random numbers. Each
+ * event is stamped with the time it was seen.
+ *
+ * <p>
+ * A run started with <tt>-r &lt;file&gt;</tt> records its events, and a run
+ * started with <tt>-p &lt;file&gt;</tt> plays them back instead of reading
+ * the console, the network and the random number generator. Everything else
+ * the simulation does depends only on simulated time, so the replayed run
+ * repeats the recorded one exactly. If the replayed run asks for an input the
+ * log does not have at that time, the two runs have diverged, and Nachos
+ * stops. Once the log runs out, the console and the random number generator
+ * are live again; the network stays silent.
+ *
+ * <p>
+ * The log is a stream of records, each a tag, the ticks since the previous
+ * record, and the event's data, with numbers written in as few bytes as they
+ * need. Timer interrupts draw a random number about every 500 ticks, so most
+ * records take four bytes.
+ */
+final class EventLog {
+	/**
+	 * Open an event log for recording or for playback.
+	 *
+	 * @param fileName the name of the log file.
+	 * @param replaying <tt>true</tt> to play back the log, <tt>false</tt> to
+	 * record a new one.
+	 * @param stats the statistics, which hold the current time.
+	 */
+	EventLog(String fileName, boolean replaying, Stats stats)
+			throws IOException {
+		this.replaying = replaying;
+		this.stats = stats;
+
+		if (replaying) {
+			in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(fileName)));
+			if (in.readInt() != magic || in.readInt() != version)
+				throw new IOException("not an event log");
+			readNext();
+		}
+		else {
+			out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(fileName)));
+			out.writeInt(magic);
+			out.writeInt(version);
+		}
+	}
+
+	/**
+	 * Test whether this log is being played back.
+	 *
+	 * @return <tt>true</tt> if events come from the log rather than from the
+	 * live devices.
+	 */
+	boolean isReplaying() {
+		return replaying && nextTag != endTag;
+	}
+
+	/**
+	 * Record a byte read from the console.
+	 *
+	 * @param value the byte.
+	 */
+	void recordConsole(int value) {
+		write(consoleTag, value, null);
+	}
+
+	/**
+	 * Play back a byte read from the console.
+	 *
+	 * @return the byte read at this time, or -1 if there was none.
+	 */
+	int replayConsole() {
+		if (!pending(consoleTag))
+			return -1;
+
+		int value = (int) nextValue;
+		readNext();
+		return value;
+	}
+
+	/**
+	 * Record a packet received from the network.
+	 *
+	 * @param packetBytes the contents of the packet.
+	 */
+	void recordPacket(byte[] packetBytes) {
+		write(packetTag, packetBytes.length, packetBytes);
+	}
+
+	/**
+	 * Play back a packet received from the network.
+	 *
+	 * @return the contents of the packet received at this time, or
+	 * <tt>null</tt> if there was none.
+	 */
+	byte[] replayPacket() {
+		if (!pending(packetTag))
+			return null;
+
+		byte[] packetBytes = nextData;
+		readNext();
+		return packetBytes;
+	}
+
+	/**
+	 * Record a random number.
+	 *
+	 * @param value the random number, or the bits of a random double.
+	 */
+	void recordRandom(long value) {
+		// zig-zag encoding keeps small negative numbers short
+		write(randomTag, (value << 1) ^ (value >> 63), null);
+	}
+
+	/**
+	 * Play back a random number. The next event in the log must be a random
+	 * number drawn at this time.
+	 *
+	 * @return the random number, or the bits of a random double.
+	 */
+	long replayRandom() {
+		Lib.assertTrue(pending(randomTag), "replay diverged from event log");
+
+		long value = (nextValue >>> 1) ^ -(nextValue & 1);
+		readNext();
+		return value;
+	}
+
+	/**
+	 * Write any buffered events to the log file, and close it.
+	 */
+	void close() {
+		try {
+			if (out != null)
+				out.close();
+			if (in != null)
+				in.close();
+		}
+		catch (IOException e) {
+		}
+
+		out = null;
+		in = null;
+		nextTag = endTag;
+	}
+
+	/**
+	 * Append a record: the tag, the ticks since the previous record, a value,
+	 * and, if <i>data</i> is not <tt>null</tt>, <i>value</i> bytes of data.
+	 */
+	private void write(int tag, long value, byte[] data) {
+		if (out == null)
+			return;
+
+		try {
+			out.writeByte(tag);
+			writeNumber(stats.totalTicks - lastTick);
+			writeNumber(value);
+			if (data != null)
+				out.write(data);
+		}
+		catch (IOException e) {
+			System.out.println("event log write failed; no longer recording");
+			close();
+		}
+
+		lastTick = stats.totalTicks;
+	}
+
+	private void writeNumber(long value) throws IOException {
+		// seven bits per byte, high bit set on all but the last
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private long readNumber() throws IOException {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+	private boolean pending(int tag) {
+		if (nextTag == endTag)
+			return false;
+
+		// events from the past were never asked for, so this run has diverged
+		Lib.assertTrue(nextTick >= stats.totalTicks,
+				"replay diverged from event log");
+
+		return nextTag == tag && nextTick == stats.totalTicks;
+	}
+
+	/**
+	 * Read the next record. A log cut short, because the recording run was
+	 * killed, ends at its last complete record.
+	 */
+	private void readNext() {
+		try {
+			nextTag = in.readUnsignedByte();
+			nextTick += readNumber();
+			nextValue = readNumber();
+
+			if (nextTag == packetTag) {
+				Lib.assertTrue(nextValue <= Packet.maxPacketLength,
+						"bad event log");
+				nextData = new byte[(int) nextValue];
+				in.readFully(nextData);
+			}
+			else {
+				Lib.assertTrue(nextTag == consoleTag || nextTag == randomTag,
+						"bad event log");
+				nextData = null;
+			}
+		}
+		catch (EOFException e) {
+			close();
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("unreadable event log");
+		}
+	}
+
+	private boolean replaying;
+
+	private Stats stats;
+
+	private DataOutputStream out = null;
+
+	private DataInputStream in = null;
+
+	private long lastTick = 0;
+
+	private int nextTag = endTag;
+
+	private long nextTick = 0;
+
+	private long nextValue;
+
+	private byte[] nextData;
+
+	private static final int consoleTag = 1, packetTag = 2, randomTag = 3;
+
+	private static final int endTag = -1;
+
+	/** "NLOG" */
+	private static final int magic = 0x4E4C4F47;
+
+	private static final int version = 1;
+}
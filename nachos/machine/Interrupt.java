@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -52,7 +50,7 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		pending = new PendingInterrupt[initialCapacity];
 	}
 
 	/**
@@ -119,16 +117,112 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Let simulated time pass until the next pending interrupt is due, and
+	 * invoke its handler. The time passes in kernel ticks, exactly as if the
+	 * caller had enabled interrupts over and over, but in one step. Meant for
+	 * an idle loop, when no thread has anything to do.
+	 */
+	public void idle() {
+		Lib.assertTrue(enabled);
+
+		long ticks = ticksUntilNextInterrupt();
+		if (ticks == Long.MAX_VALUE) {
+			tick(true);
+			return;
+		}
+
+		long count = (ticks + Stats.KernelTick - 1) / Stats.KernelTick;
+		tick(true, (int) Math.max(1, Math.min(count, Integer.MAX_VALUE)));
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
 		Lib.assertTrue(when > 0);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+
+		PendingInterrupt toOccur = free;
+		if (toOccur != null)
+			free = toOccur.nextFree;
+		else
+			toOccur = new PendingInterrupt();
+
+		toOccur.time = time;
+		toOccur.type = type;
+		toOccur.handler = handler;
+		toOccur.id = numPendingInterruptsCreated++;
 
 		Lib.debug(dbgInt, "Scheduling the " + type
 				+ " interrupt handler at time = " + time);
 
-		pending.add(toOccur);
+		if (numPending == pending.length)
+			pending = Arrays.copyOf(pending, pending.length * 2);
+
+		siftUp(numPending++, toOccur);
+	}
+
+	/**
+	 * Remove the earliest pending interrupt from the heap. The caller must
+	 * return it to the free list with <tt>recycle()</tt>.
+	 */
+	private PendingInterrupt removeFirst() {
+		PendingInterrupt first = pending[0];
+
+		PendingInterrupt last = pending[--numPending];
+		pending[numPending] = null;
+		if (numPending > 0)
+			siftDown(0, last);
+
+		return first;
+	}
+
+	private void recycle(PendingInterrupt toOccur) {
+		toOccur.type = null;
+		toOccur.handler = null;
+		toOccur.nextFree = free;
+		free = toOccur;
+	}
+
+	/**
+	 * Move <i>toOccur</i> up from slot <i>i</i> to its place in the heap.
+	 */
+	private void siftUp(int i, PendingInterrupt toOccur) {
+		while (i > 0) {
+			int parent = (i - 1) / arity;
+			if (!toOccur.before(pending[parent]))
+				break;
+
+			pending[i] = pending[parent];
+			i = parent;
+		}
+
+		pending[i] = toOccur;
+	}
+
+	/**
+	 * Move <i>toOccur</i> down from slot <i>i</i> to its place in the heap.
+	 */
+	private void siftDown(int i, PendingInterrupt toOccur) {
+		while (true) {
+			int first = i * arity + 1;
+			if (first >= numPending)
+				break;
+
+			int earliest = first;
+			int end = Math.min(first + arity, numPending);
+			for (int child = first + 1; child < end; child++) {
+				if (pending[child].before(pending[earliest]))
+					earliest = child;
+			}
+
+			if (!pending[earliest].before(toOccur))
+				break;
+
+			pending[i] = pending[earliest];
+			i = earliest;
+		}
+
+		pending[i] = toOccur;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -151,6 +245,42 @@ public final class Interrupt {
 		enabled = true;
 	}
 
+	private void tick(boolean inKernelMode, int count) {
+		Lib.assertTrue(count >= 0);
+
+		// keep the per-tick trace identical when it is being printed
+		if (Lib.test(dbgInt)) {
+			for (int i = 0; i < count; i++)
+				tick(inKernelMode);
+			return;
+		}
+
+		if (count == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		if (inKernelMode) {
+			stats.kernelTicks += (long) Stats.KernelTick * count;
+			stats.totalTicks += (long) Stats.KernelTick * count;
+		}
+		else {
+			stats.userTicks += (long) Stats.UserTick * count;
+			stats.totalTicks += (long) Stats.UserTick * count;
+		}
+
+		enabled = false;
+		checkIfDue();
+		enabled = true;
+	}
+
+	private long ticksUntilNextInterrupt() {
+		if (numPending == 0)
+			return Long.MAX_VALUE;
+
+		return Math.max(0, pending[0].time - privilege.stats.totalTicks);
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +289,26 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (numPending == 0 || pending[0].time > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (numPending > 0 && pending[0].time <= time) {
+			PendingInterrupt next = removeFirst();
+
+			String type = next.type;
+			Runnable handler = next.handler;
 
-			Lib.assertTrue(next.time <= time);
+			// the handler may schedule another interrupt with this node
+			recycle(next);
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			Lib.debug(dbgInt, "  " + type);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,21 +319,26 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			System.out.println("  " + sorted[i].type + ", scheduled at "
+					+ sorted[i].time);
 		}
 
 		System.out.println("  (end of list)");
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
+	/**
+	 * A pending interrupt. Interrupts occur in order of time, and interrupts
+	 * scheduled for the same time occur in the order they were scheduled.
+	 * Nodes are reused once their interrupt has occurred.
+	 */
+	private static class PendingInterrupt implements Comparable {
+		boolean before(PendingInterrupt toOccur) {
+			return time < toOccur.time
+					|| (time == toOccur.time && id < toOccur.id);
 		}
 
 		public int compareTo(Object o) {
@@ -230,6 +364,8 @@ public final class Interrupt {
 		Runnable handler;
 
 		private long id;
+
+		private PendingInterrupt nextFree;
 	}
 
 	private long numPendingInterruptsCreated = 0;
@@ -238,7 +374,24 @@ public final class Interrupt {
 
 	private boolean enabled;
 
-	private TreeSet<PendingInterrupt> pending;
+	/**
+	 * The pending interrupts, as a heap in which each node has
+	 * <tt>arity</tt> children. The earliest interrupt is always first.
+	 */
+	private PendingInterrupt[] pending;
+
+	private int numPending = 0;
+
+	/** Nodes whose interrupts have occurred, ready to be reused. */
+	private PendingInterrupt free = null;
+
+	/**
+	 * Four children per node make the heap shallower than a binary heap,
+	 * and the children of a node sit next to each other in the array.
+	 */
+	private static final int arity = 4;
+
+	private static final int initialCapacity = 16;
 
 	private static final char dbgInt = 'i';
 
@@ -250,5 +403,13 @@ public final class Interrupt {
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public void tick(boolean inKernelMode, int count) {
+			Interrupt.this.tick(inKernelMode, count);
+		}
+
+		public long ticksUntilNextInterrupt() {
+			return Interrupt.this.ticksUntilNextInterrupt();
+		}
 	}
 }
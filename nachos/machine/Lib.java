@@ -32,7 +32,35 @@ public final class Lib {
 	private Lib() {
 	}
 
-	private static Random random = null;
+	/**
+	 * The generator of <tt>java.util.Random</tt>, with its state exposed so
+	 * that checkpoints can save it.
+	 */
+	private static class SeededRandom extends Random {
+		SeededRandom(long seed) {
+			super(seed);
+		}
+
+		public void setSeed(long seed) {
+			state = (seed ^ multiplier) & mask;
+		}
+
+		protected int next(int bits) {
+			state = (state * multiplier + addend) & mask;
+			return (int) (state >>> (48 - bits));
+		}
+
+		// set by Random's constructor, so it must not have an initializer
+		long state;
+
+		private static final long serialVersionUID = 1L;
+
+		private static final long multiplier = 0x5DEECE66DL;
+		private static final long addend = 0xBL;
+		private static final long mask = (1L << 48) - 1;
+	}
+
+	private static SeededRandom random = null;
 
 	/**
 	 * Seed the random number generater. May only be called once.
@@ -41,7 +69,7 @@ public final class Lib {
 	 */
 	public static void seedRandom(long randomSeed) {
 		assertTrue(random == null);
-		random = new Random(randomSeed);
+		random = new SeededRandom(randomSeed);
 	}
 
 	/**
@@ -54,7 +82,37 @@ public final class Lib {
 	 */
 	public static int random(int range) {
 		assertTrue(range > 0);
-		return random.nextInt(range);
+
+		EventLog log = Machine.eventLog();
+		if (log == null)
+			return random.nextInt(range);
+
+		if (log.isReplaying())
+			return (int) log.replayRandom();
+
+		int value = random.nextInt(range);
+		log.recordRandom(value);
+		return value;
+	}
+
+	/**
+	 * Return the state of the random number generator, so that a checkpoint
+	 * can restore the same sequence of random numbers.
+	 * 
+	 * @return the state of the random number generator.
+	 */
+	static long getRandomState() {
+		return random.state;
+	}
+
+	/**
+	 * Restore a state of the random number generator returned by
+	 * <tt>getRandomState()</tt>.
+	 * 
+	 * @param state the state of the random number generator.
+	 */
+	static void setRandomState(long state) {
+		random.state = state;
 	}
 
 	/**
@@ -63,7 +121,16 @@ public final class Lib {
 	 * @return a random double between 0.0 and 1.0.
 	 */
 	public static double random() {
-		return random.nextDouble();
+		EventLog log = Machine.eventLog();
+		if (log == null)
+			return random.nextDouble();
+
+		if (log.isReplaying())
+			return Double.longBitsToDouble(log.replayRandom());
+
+		double value = random.nextDouble();
+		log.recordRandom(Double.doubleToLongBits(value));
+		return value;
 	}
 
 	/**
@@ -5,7 +5,16 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.ag.*;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -38,6 +47,16 @@ public final class Machine {
 
 		Config.load(configFileName);
 
+		if (eventLogFileName != null) {
+			try {
+				eventLog = new EventLog(eventLogFileName, replayEventLog, stats);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached("unable to open event log "
+						+ eventLogFileName);
+			}
+		}
+
 		// get the current directory (.)
 		baseDirectory = new File(new File("").getAbsolutePath());
 		// get the nachos directory (./nachos)
@@ -59,6 +78,14 @@ public final class Machine {
 
 		privilege.machine = new MachinePrivilege();
 
+		if (eventLog != null) {
+			privilege.addExitNotificationHandler(new Runnable() {
+				public void run() {
+					eventLog.close();
+				}
+			});
+		}
+
 		TCB.givePrivilege(privilege);
 		privilege.stats = stats;
 
@@ -66,6 +93,9 @@ public final class Machine {
 		createDevices();
 		checkUserClasses();
 
+		if (Lib.test(dbgCheckpoint))
+			Checkpoint.selfTest(stats);
+
 		autoGrader = (AutoGrader) Lib.constructObject(autoGraderClassName);
 
 		new TCB().start(new Runnable() {
@@ -109,9 +139,81 @@ public final class Machine {
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (processor != null)
+			processor.printProfile();
 		terminate();
 	}
 
+	/**
+	 * Save a checkpoint of the simulated hardware in the file <i>name</i> in
+	 * the test directory. Only the holder of a privilege can do this, through
+	 * <tt>Privilege.MachinePrivilege</tt>.
+	 */
+	private static boolean checkpoint(String name) {
+		final File file = checkpointFile(name);
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					DataOutputStream out = new DataOutputStream(
+							new BufferedOutputStream(new FileOutputStream(file)));
+					try {
+						Checkpoint.write(out, stats);
+					}
+					finally {
+						out.close();
+					}
+					return null;
+				}
+			});
+			return true;
+		}
+		catch (PrivilegedActionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Restore the simulated hardware from the checkpoint in the file
+	 * <i>name</i> in the test directory.
+	 */
+	private static boolean restoreCheckpoint(String name) {
+		final File file = checkpointFile(name);
+
+		try {
+			privilege.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				public Object run() throws IOException {
+					DataInputStream in = new DataInputStream(
+							new BufferedInputStream(new FileInputStream(file)));
+					try {
+						Checkpoint.read(in, stats);
+					}
+					finally {
+						in.close();
+					}
+					return null;
+				}
+			});
+			return true;
+		}
+		catch (PrivilegedActionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Return the file in the test directory for the checkpoint <i>name</i>,
+	 * which must be a plain file name.
+	 */
+	private static File checkpointFile(String name) {
+		Lib.assertTrue(name.length() > 0 && name.indexOf('/') == -1
+				&& name.indexOf(File.separatorChar) == -1
+				&& !name.equals(".") && !name.equals(".."),
+				"bad checkpoint name: " + name);
+
+		return new File(testDirectory, name);
+	}
+
 	/**
 	 * Return an array containing all command line arguments.
 	 * 
@@ -146,6 +248,13 @@ public final class Machine {
 						Lib.assertNotReached("bad value for -m switch");
 					}
 				}
+				else if (arg.equals("-p") || arg.equals("-r")) {
+					Lib.assertTrue(i < args.length, "switch without argument");
+					Lib.assertTrue(eventLogFileName == null,
+							"only one of -p and -r may be given");
+					replayEventLog = arg.equals("-p");
+					eventLogFileName = args[i++];
+				}
 				else if (arg.equals("-s")) {
 					Lib.assertTrue(i < args.length, "switch without argument");
 					try {
@@ -378,6 +487,16 @@ public final class Machine {
 		return autoGrader;
 	}
 
+	/**
+	 * Return the log of nondeterministic inputs.
+	 * 
+	 * @return the event log, or <tt>null</tt> if inputs are neither recorded
+	 * nor replayed.
+	 */
+	static EventLog eventLog() {
+		return eventLog;
+	}
+
 	private static Interrupt interrupt = null;
 
 	private static Timer timer = null;
@@ -394,6 +513,8 @@ public final class Machine {
 
 	private static AutoGrader autoGrader = null;
 
+	private static EventLog eventLog = null;
+
 	private static String autoGraderClassName = "nachos.ag.AutoGrader";
 
 	/**
@@ -436,6 +557,8 @@ public final class Machine {
 
 	private static String processClassName = null;
 
+	private static final char dbgCheckpoint = 'k';
+
 	private static NachosSecurityManager securityManager;
 
 	private static Privilege privilege;
@@ -448,6 +571,10 @@ public final class Machine {
 
 	private static long randomSeed = 0;
 
+	private static String eventLogFileName = null;
+
+	private static boolean replayEventLog = false;
+
 	private static File baseDirectory, nachosDirectory, testDirectory;
 
 	private static String configFileName = "nachos.conf";
@@ -464,6 +591,14 @@ public final class Machine {
 			+ "\t-m <pages>\n"
 			+ "\t\tSpecify how many physical pages of memory to simulate.\n"
 			+ "\n"
+			+ "\t-p <event log>\n"
+			+ "\t\tReplay the console input, network packets and random numbers\n"
+			+ "\t\trecorded by -r, so that the run repeats exactly.\n"
+			+ "\n"
+			+ "\t-r <event log>\n"
+			+ "\t\tRecord the console input, network packets and random numbers\n"
+			+ "\t\tof this run, for -p to replay.\n"
+			+ "\n"
 			+ "\t-s <seed>\n"
 			+ "\t\tSpecify the seed for the random number generator (seed is a\n"
 			+ "\t\tlong).\n" + "\n" + "\t-x <program>\n"
@@ -506,6 +641,14 @@ public final class Machine {
 		public void setConsole(SerialConsole console) {
 			Machine.console = console;
 		}
+
+		public boolean checkpoint(String name) {
+			return Machine.checkpoint(name);
+		}
+
+		public boolean restoreCheckpoint(String name) {
+			return Machine.restoreCheckpoint(name);
+		}
 	}
 
 	// dummy variables to make javac smarter
@@ -119,6 +119,10 @@ public class NetworkLink {
 
 		scheduleReceiveInterrupt();
 
+		// packets come from the event log when replaying one
+		if (Machine.eventLog() != null && Machine.eventLog().isReplaying())
+			return;
+
 		Thread receiveThread = new Thread(new Runnable() {
 			public void run() {
 				receiveLoop();
@@ -168,6 +172,14 @@ public class NetworkLink {
 	private synchronized void receiveInterrupt() {
 		Lib.assertTrue(incomingPacket == null);
 
+		EventLog log = Machine.eventLog();
+		if (log != null) {
+			if (log.isReplaying())
+				incomingBytes = log.replayPacket();
+			else if (incomingBytes != null)
+				log.recordPacket(incomingBytes);
+		}
+
 		if (incomingBytes != null) {
 			if (Machine.autoGrader().canReceivePacket(privilege)) {
 				try {
@@ -4,6 +4,12 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -40,12 +46,48 @@ public final class Processor {
 		// let config file value override
 		usingTLB = Config.getBoolean ("Processor.usingTLB", usingTLB);
 
+		/*
+		 * The kernel's only mutual exclusion is disabling interrupts on this
+		 * one CPU, and TCB lets just one Nachos thread run at a time, so
+		 * there is no sound way to run more than one CPU.
+		 */
+		int numCPUs = Config.getInteger("Processor.numCPUs", 1);
+		Lib.assertTrue(numCPUs == 1, "Processor.numCPUs = " + numCPUs
+				+ ": Nachos kernels assume a uniprocessor");
+
 		this.numPhysPages = numPhysPages;
 
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		Lib.assertTrue(numPhysPages <= Integer.MAX_VALUE / pageSize);
+
+		// large memories can be kept off the Java heap
+		if (Config.getBoolean("Processor.offHeapMemory", false)) {
+			mainMemory = null;
+			memory = ByteBuffer.allocateDirect(pageSize * numPhysPages);
+		}
+		else {
+			mainMemory = new byte[pageSize * numPhysPages];
+			memory = ByteBuffer.wrap(mainMemory);
+		}
+		memory.order(ByteOrder.LITTLE_ENDIAN);
+		decodeCache = new DecodedInstruction[numPhysPages][];
+
+		tracing = Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble);
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler();
+
+		// basic-block translation can't trace or profile single instructions
+		blockTranslation = Config.getBoolean("Processor.blockTranslation", false)
+				&& !tracing && profiler == null;
+
+		if (blockTranslation) {
+			blockCache = new BasicBlock[numPhysPages][];
+			jitThreshold = Config.getInteger("Processor.jitThreshold", 0);
+		}
 
 		if (usingTLB) {
 			translations = new TranslationEntry[tlbSize];
@@ -91,6 +133,11 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		if (blockTranslation)
+			runBlocks();
+		else if (!tracing && profiler == null)
+			runUntraced();
+
 		Instruction inst = new Instruction();
 
 		while (true) {
@@ -105,6 +152,160 @@ public final class Processor {
 		}
 	}
 
+	/**
+	 * Execute instructions one at a time, like <tt>run()</tt>, but without
+	 * any of the tracing <tt>Instruction</tt> does for the processor debug
+	 * flags. Each instruction is executed by its cached <tt>Op</tt>, so the
+	 * loop never tests a debug flag.
+	 * 
+	 * <p>
+	 * Simulated time is settled once for every run of instructions that ends
+	 * before the next pending interrupt is due, or at an exception, so
+	 * interrupts and exceptions happen at exactly the same ticks as in
+	 * <tt>run()</tt>. Never returns.
+	 */
+	private void runUntraced() {
+		while (true) {
+			long untilInterrupt = privilege.interrupt.ticksUntilNextInterrupt()
+					/ Stats.UserTick;
+			int limit = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+					untilInterrupt));
+
+			int completed = 0;
+			int cause = -1, badVAddr = 0;
+			boolean hasBadVAddr = false;
+
+			try {
+				while (completed < limit) {
+					int paddr = translateUntraced(registers[regPC], 4, false,
+							true);
+					opAt(paddr, memory.getInt(paddr)).run();
+					completed++;
+				}
+			}
+			catch (MipsException e) {
+				// settling the ticks can run another thread, which may reuse e
+				cause = e.cause;
+				hasBadVAddr = e.hasBadVAddr;
+				badVAddr = e.badVAddr;
+			}
+
+			privilege.interrupt.tick(false, completed);
+
+			if (cause != -1) {
+				handleException(cause, hasBadVAddr, badVAddr);
+				privilege.interrupt.tick(false);
+			}
+		}
+	}
+
+	/**
+	 * Execute instructions a basic block at a time. Simulated time is charged
+	 * once per block instead of once per instruction, but a block is cut short
+	 * whenever an interrupt would have become due inside it, so interrupts and
+	 * exceptions are delivered at exactly the same ticks as in <tt>run()</tt>.
+	 * Never returns.
+	 */
+	private void runBlocks() {
+		Instruction inst = new Instruction();
+
+		while (true) {
+			BasicBlock block;
+			try {
+				block = currentBlock();
+			}
+			catch (MipsException e) {
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			// only run as many instructions as fit before the next interrupt
+			long untilInterrupt = privilege.interrupt.ticksUntilNextInterrupt()
+					/ Stats.UserTick;
+			int limit = (int) Math.max(1, Math.min(block.ops.length,
+					untilInterrupt));
+
+			// in a branch delay slot, nextPC is not the following instruction
+			boolean delaySlot = (registers[regNextPC] != registers[regPC] + 4);
+			if (delaySlot)
+				limit = 1;
+
+			// compiled code only runs whole blocks from a clean start
+			CompiledBlock compiled = block.compiled;
+			if (delaySlot || loadTarget != 0 || limit < block.ops.length)
+				compiled = null;
+			else if (compiled == null && jitThreshold > 0)
+				block.countExecution();
+
+			int completed = 0;
+			int cause = -1, badVAddr = 0;
+			boolean hasBadVAddr = false;
+
+			blocksInvalidated = false;
+			try {
+				if (compiled != null) {
+					completed = compiled.run(registers);
+				}
+				else {
+					while (completed < limit) {
+						block.ops[completed].run();
+						completed++;
+
+						// a store overwrote code that may belong to this block
+						if (blocksInvalidated)
+							break;
+					}
+				}
+			}
+			catch (MipsException e) {
+				if (compiled != null)
+					completed = compiled.completed;
+
+				// settling the ticks can run another thread, which may reuse e
+				cause = e.cause;
+				hasBadVAddr = e.hasBadVAddr;
+				badVAddr = e.badVAddr;
+			}
+
+			privilege.interrupt.tick(false, completed);
+
+			if (cause != -1) {
+				handleException(cause, hasBadVAddr, badVAddr);
+				privilege.interrupt.tick(false);
+			}
+		}
+	}
+
+	/**
+	 * Return the basic block starting at the current PC, translating it first
+	 * if it is not cached or if the instructions it was translated from have
+	 * changed.
+	 * 
+	 * @return the basic block at the current PC.
+	 * @exception MipsException if the PC could not be translated.
+	 */
+	private BasicBlock currentBlock() throws MipsException {
+		int paddr = translateUntraced(registers[regPC], 4, false, true);
+		int ppn = paddr / pageSize;
+
+		BasicBlock[] page = blockCache[ppn];
+		if (page == null) {
+			page = new BasicBlock[pageSize / 4];
+			blockCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		BasicBlock block = page[index];
+		if (block == null || !block.matchesMemory()) {
+			block = new BasicBlock(paddr);
+			page[index] = block;
+		}
+
+		return block;
+	}
+
 	/**
 	 * Read and return the contents of the specified CPU register.
 	 * 
@@ -216,6 +417,9 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+
+		// the cached entries may have been replaced
+		lastFetchEntry = lastDataEntry = null;
 	}
 
 	/**
@@ -232,12 +436,225 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * There is no such array if physical memory is kept off the Java heap
+	 * (<tt>Processor.offHeapMemory</tt> in <tt>nachos.conf</tt>), so kernels
+	 * that may run in that configuration should use
+	 * <tt>readPhysicalMemory()</tt>, <tt>writePhysicalMemory()</tt>,
+	 * <tt>copyPage()</tt> and <tt>zeroPage()</tt> instead.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null, "physical memory is off-heap");
+
 		return mainMemory;
 	}
 
+	/**
+	 * Copy <i>length</i> bytes of physical memory starting at <i>paddr</i>
+	 * into <i>data</i>.
+	 * 
+	 * @param paddr the first byte of physical memory to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void readPhysicalMemory(int paddr, byte[] data, int offset,
+			int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& length <= memory.capacity() - paddr);
+
+		ByteBuffer source = memory.duplicate();
+		source.position(paddr);
+		source.get(data, offset, length);
+	}
+
+	/**
+	 * Copy <i>length</i> bytes from <i>data</i> into physical memory starting
+	 * at <i>paddr</i>. Like <tt>invalidatePage()</tt>, this discards anything
+	 * the processor decoded from the pages written.
+	 * 
+	 * @param paddr the first byte of physical memory to write.
+	 * @param data the array containing the data to copy.
+	 * @param offset the first byte to copy from the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void writePhysicalMemory(int paddr, byte[] data, int offset,
+			int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& length <= memory.capacity() - paddr);
+
+		ByteBuffer destination = memory.duplicate();
+		destination.position(paddr);
+		destination.put(data, offset, length);
+
+		if (length > 0) {
+			for (int ppn = paddr / pageSize; ppn <= (paddr + length - 1)
+					/ pageSize; ppn++)
+				invalidatePage(ppn);
+		}
+	}
+
+	/**
+	 * Copy the contents of one physical page to another.
+	 * 
+	 * @param srcPPN the physical page to copy from.
+	 * @param dstPPN the physical page to copy to.
+	 */
+	public void copyPage(int srcPPN, int dstPPN) {
+		Lib.assertTrue(srcPPN >= 0 && srcPPN < numPhysPages);
+		Lib.assertTrue(dstPPN >= 0 && dstPPN < numPhysPages);
+
+		ByteBuffer source = memory.duplicate();
+		source.limit(srcPPN * pageSize + pageSize);
+		source.position(srcPPN * pageSize);
+
+		ByteBuffer destination = memory.duplicate();
+		destination.position(dstPPN * pageSize);
+		destination.put(source);
+		invalidatePage(dstPPN);
+	}
+
+	/**
+	 * Fill a physical page with zeros.
+	 * 
+	 * @param ppn the physical page to clear.
+	 */
+	public void zeroPage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		ByteBuffer destination = memory.duplicate();
+		destination.position(ppn * pageSize);
+		destination.put(zeroPage, 0, pageSize);
+		invalidatePage(ppn);
+	}
+
+	/**
+	 * Write the processor's state to a checkpoint: the registers, the delayed
+	 * load, the TLB, and every page of physical memory that is not all zero.
+	 * A page table is kernel state, so it is not included.
+	 * 
+	 * @param out the checkpoint to write to.
+	 */
+	void checkpoint(DataOutputStream out) throws IOException {
+		out.writeInt(numPhysPages);
+		out.writeBoolean(usingTLB);
+
+		for (int i = 0; i < numUserRegisters; i++)
+			out.writeInt(registers[i]);
+
+		out.writeInt(loadTarget);
+		out.writeInt(loadValue);
+		out.writeInt(loadMask);
+
+		if (usingTLB) {
+			for (int i = 0; i < tlbSize; i++) {
+				TranslationEntry entry = translations[i];
+				out.writeInt(entry.vpn);
+				out.writeInt(entry.ppn);
+				out.writeBoolean(entry.valid);
+				out.writeBoolean(entry.readOnly);
+				out.writeBoolean(entry.used);
+				out.writeBoolean(entry.dirty);
+			}
+		}
+
+		byte[] page = new byte[pageSize];
+		for (int ppn = 0; ppn < numPhysPages; ppn++) {
+			readPhysicalMemory(ppn * pageSize, page, 0, pageSize);
+
+			boolean zero = true;
+			for (int i = 0; i < pageSize && zero; i++)
+				zero = (page[i] == 0);
+
+			if (!zero) {
+				out.writeInt(ppn);
+				out.write(page);
+			}
+		}
+		out.writeInt(-1);
+	}
+
+	/**
+	 * Restore the processor's state from a checkpoint written by
+	 * <tt>checkpoint()</tt>.
+	 * 
+	 * @param in the checkpoint to read from.
+	 */
+	void restoreCheckpoint(DataInputStream in) throws IOException {
+		if (in.readInt() != numPhysPages || in.readBoolean() != usingTLB)
+			throw new IOException("checkpoint is for a different processor");
+
+		for (int i = 0; i < numUserRegisters; i++)
+			registers[i] = in.readInt();
+
+		loadTarget = in.readInt();
+		loadValue = in.readInt();
+		loadMask = in.readInt();
+
+		if (usingTLB) {
+			for (int i = 0; i < tlbSize; i++) {
+				translations[i] = new TranslationEntry(in.readInt(),
+						in.readInt(), in.readBoolean(), in.readBoolean(),
+						in.readBoolean(), in.readBoolean());
+			}
+
+			lastFetchEntry = lastDataEntry = null;
+		}
+
+		for (int ppn = 0; ppn < numPhysPages; ppn++)
+			zeroPage(ppn);
+
+		byte[] page = new byte[pageSize];
+		for (int ppn = in.readInt(); ppn != -1; ppn = in.readInt()) {
+			if (ppn < 0 || ppn >= numPhysPages)
+				throw new IOException("bad page in checkpoint");
+
+			in.readFully(page);
+			writePhysicalMemory(ppn * pageSize, page, 0, pageSize);
+		}
+	}
+
+	/**
+	 * Tell the profiler, if there is one, about an executable that was just
+	 * loaded, so it can name the PCs within it.
+	 * 
+	 * @param coff the executable.
+	 * @param name the name of the executable's file, or <tt>null</tt>.
+	 */
+	void profileExecutable(Coff coff, String name) {
+		if (profiler != null)
+			profiler.addExecutable(coff, name);
+	}
+
+	/**
+	 * Print the profile collected since the processor was created, if
+	 * profiling is enabled by the <tt>Processor.profile</tt> key in
+	 * <tt>nachos.conf</tt>.
+	 */
+	void printProfile() {
+		if (profiler != null)
+			profiler.print();
+	}
+
+	/**
+	 * Notify the processor that the contents of the specified physical page
+	 * were replaced by the kernel, for example by loading it from an executable
+	 * or a swap file. Discards any instructions the processor has decoded from
+	 * the old contents of the page.
+	 * 
+	 * @param ppn the physical page that was modified.
+	 */
+	public void invalidatePage(int ppn) {
+		Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+		decodeCache[ppn] = null;
+
+		if (blockTranslation)
+			blockCache[ppn] = null;
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -278,6 +695,37 @@ public final class Processor {
 		delayedLoad(0, 0, 0);
 	}
 
+	/**
+	 * Finish executing an instruction that writes <i>value</i> to register
+	 * <i>dstReg</i>: complete any delayed load, write the destination, and
+	 * advance the PC. Used by the translated instructions of a basic block.
+	 * 
+	 * @param dstReg the destination register, or 0 for none.
+	 * @param value the value to write.
+	 */
+	private void retire(int dstReg, int value) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		if (dstReg != 0)
+			registers[dstReg] = value;
+
+		advancePC(registers[regNextPC] + 4);
+	}
+
+	/**
+	 * Finish executing an instruction that writes no register, and continues
+	 * at <i>nextPC</i> after its delay slot.
+	 * 
+	 * @param nextPC the address of the instruction after the delay slot.
+	 */
+	private void retireJump(int nextPC) {
+		if (loadTarget != 0)
+			finishLoad();
+
+		advancePC(nextPC);
+	}
+
 	/**
 	 * Translate a virtual address into a physical address, using either a page
 	 * table or a TLB. Check for alignment, make sure the virtual page is valid,
@@ -296,10 +744,31 @@ public final class Processor {
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
 
+		int paddr = translateUntraced(vaddr, size, writing, false);
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	/**
+	 * Translate a virtual address into a physical address, exactly like
+	 * <tt>translate()</tt> but without tracing the translation.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param size the size of the memory reference (must be 1, 2, or 4).
+	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param fetch <tt>true</tt> if the memory reference is an instruction
+	 * fetch.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateUntraced(int vaddr, int size, boolean writing,
+			boolean fetch) throws MipsException {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw exception(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -313,38 +782,53 @@ public final class Processor {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
+				if (profiler != null)
+					profiler.countPageFault(registers[regPC]);
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw exception(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
 		// else, look through all TLB entries for matching vpn
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
-					break;
+			// the vpn usually repeats, so try the last matching entry first
+			entry = fetch ? lastFetchEntry : lastDataEntry;
+
+			if (entry == null || entry.vpn != vpn) {
+				entry = null;
+				for (int i = 0; i < tlbSize; i++) {
+					if (translations[i].valid && translations[i].vpn == vpn) {
+						entry = translations[i];
+						break;
+					}
 				}
-			}
-			if (entry == null) {
-				privilege.stats.numTLBMisses++;
-				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				if (entry == null) {
+					privilege.stats.numTLBMisses++;
+					if (profiler != null)
+						profiler.countTLBMiss(registers[regPC]);
+					Lib.debug(dbgProcessor, "\t\tTLB miss");
+					throw exception(exceptionTLBMiss, vaddr);
+				}
+
+				if (fetch)
+					lastFetchEntry = entry;
+				else
+					lastDataEntry = entry;
 			}
 		}
 
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw exception(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw exception(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -352,11 +836,7 @@ public final class Processor {
 		if (writing)
 			entry.dirty = true;
 
-		int paddr = (ppn * pageSize) + offset;
-
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
-		return paddr;
+		return (ppn * pageSize) + offset;
 	}
 
 	/**
@@ -369,14 +849,51 @@ public final class Processor {
 	 * @exception MipsException if a translation error occurred.
 	 */
 	private int readMem(int vaddr, int size) throws MipsException {
+		return readPhysMem(translateRead(vaddr, size), size);
+	}
+
+	/**
+	 * Read virtual memory exactly like <tt>readMem()</tt>, but without
+	 * tracing the access.
+	 * 
+	 * @param vaddr the virtual address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int readMemUntraced(int vaddr, int size) throws MipsException {
+		return readPhys(translateUntraced(vaddr, size, false, false), size);
+	}
+
+	/**
+	 * Translate the virtual address of a read of <i>size</i> (1, 2, or 4)
+	 * bytes at <i>vaddr</i>. This is the first half of <tt>readMem()</tt>.
+	 * 
+	 * @param vaddr the virtual address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateRead(int vaddr, int size) throws MipsException {
 		if (Lib.test(dbgProcessor))
 			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 					+ ", size=" + size);
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+		return translate(vaddr, size, false);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>.
+	 * This is the second half of <tt>readMem()</tt>.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhysMem(int paddr, int size) {
+		int value = readPhys(paddr, size);
 
 		if (Lib.test(dbgProcessor))
 			System.out.println("\t\tvalue read=0x"
@@ -402,7 +919,109 @@ public final class Processor {
 
 		Lib.assertTrue(size == 1 || size == 2 || size == 4);
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+		writePhysMem(translate(vaddr, size, true), size, value);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>
+	 * as a little-endian, sign-extended value.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhys(int paddr, int size) {
+		switch (size) {
+		case 1:
+			return memory.get(paddr);
+		case 2:
+			return memory.getShort(paddr);
+		case 4:
+			return memory.getInt(paddr);
+		default:
+			Lib.assertNotReached();
+			return -1;
+		}
+	}
+
+	/**
+	 * Write virtual memory exactly like <tt>writeMem()</tt>, but without
+	 * tracing the access.
+	 * 
+	 * @param vaddr the virtual address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private void writeMemUntraced(int vaddr, int size, int value)
+			throws MipsException {
+		writePhysMem(translateUntraced(vaddr, size, true, false), size, value);
+	}
+
+	/**
+	 * Write <i>value</i> to <i>size</i> (1, 2, or 4) bytes of physical memory
+	 * at <i>paddr</i>, and discard anything decoded or translated from the
+	 * page it falls in.
+	 * 
+	 * @param paddr the physical address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 */
+	private void writePhysMem(int paddr, int size, int value) {
+		switch (size) {
+		case 1:
+			memory.put(paddr, (byte) value);
+			break;
+		case 2:
+			memory.putShort(paddr, (short) value);
+			break;
+		case 4:
+			memory.putInt(paddr, value);
+			break;
+		default:
+			Lib.assertNotReached();
+		}
+
+		// the store may have overwritten instructions we already decoded
+		int ppn = paddr / pageSize;
+		if (decodeCache[ppn] != null)
+			decodeCache[ppn] = null;
+
+		if (blockTranslation && blockCache[ppn] != null) {
+			blockCache[ppn] = null;
+			blocksInvalidated = true;
+		}
+	}
+
+	/**
+	 * Return the decoded form of the instruction word <i>value</i>, which was
+	 * fetched from physical address <i>paddr</i>. Decoded instructions are
+	 * cached per physical page. A cached entry is only used if it was decoded
+	 * from the same word, so the kernel writing to physical memory directly
+	 * can never cause a stale instruction to be executed.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @param value the instruction word at <i>paddr</i>.
+	 * @return the decoded instruction.
+	 */
+	private DecodedInstruction decodeAt(int paddr, int value) {
+		int ppn = paddr / pageSize;
+
+		DecodedInstruction[] page = decodeCache[ppn];
+		if (page == null) {
+			page = new DecodedInstruction[pageSize / 4];
+			decodeCache[ppn] = page;
+		}
+
+		int index = (paddr % pageSize) / 4;
+
+		DecodedInstruction decoded = page[index];
+		if (decoded == null || decoded.value != value) {
+			decoded = new DecodedInstruction(value);
+			page[index] = decoded;
+		}
+
+		return decoded;
 	}
 
 	/**
@@ -571,11 +1190,78 @@ public final class Processor {
 	/** Number of pages in a 32-bit address space. */
 	public static final int maxPages = (int) (0x100000000L / pageSize);
 
+	/**
+	 * The TLB entries that matched the last instruction fetch and the last
+	 * data access, or <tt>null</tt>. TLB entries only change through
+	 * <tt>writeTLBEntry()</tt>, which clears these, so a cached entry is
+	 * always still valid and still the first match for its vpn.
+	 */
+	private TranslationEntry lastFetchEntry = null, lastDataEntry = null;
+
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
-	private byte[] mainMemory;
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if it is kept off the
+	 * Java heap.
+	 */
+	private byte[] mainMemory;
+
+	/**
+	 * Little-endian main memory, so words and halfwords are read and written
+	 * whole instead of a byte at a time. Either a view of <tt>mainMemory</tt>
+	 * or a direct buffer.
+	 */
+	private ByteBuffer memory;
+
+	private static final byte[] zeroPage = new byte[pageSize];
+
+	/**
+	 * <tt>true</tt> if any of the processor debug flags is set, so every
+	 * instruction has to go through the tracing in <tt>Instruction</tt>.
+	 */
+	private boolean tracing;
+
+	/** Counts executed instructions, or <tt>null</tt> if not profiling. */
+	private Profiler profiler = null;
+
+	/**
+	 * <tt>true</tt> if user code is executed a basic block at a time, as
+	 * selected by the <tt>Processor.blockTranslation</tt> key in
+	 * <tt>nachos.conf</tt>.
+	 */
+	private boolean blockTranslation;
+
+	/**
+	 * Translated basic blocks, indexed like <tt>decodeCache</tt> by the
+	 * physical address of their first instruction. Only allocated if
+	 * <tt>blockTranslation</tt> is set.
+	 */
+	private BasicBlock[][] blockCache = null;
+
+	/**
+	 * The number of times a basic block is run before it is compiled to JVM
+	 * bytecode, from the <tt>Processor.jitThreshold</tt> key in
+	 * <tt>nachos.conf</tt>. 0 if blocks are never compiled.
+	 */
+	private int jitThreshold = 0;
+
+	/** Set by <tt>writeMem()</tt> when a store discards translated blocks. */
+	private boolean blocksInvalidated = false;
+
+	/** Executes the instructions that blocks don't have a translation for. */
+	private Instruction blockInstruction = new Instruction();
+
+	/**
+	 * Decoded instructions, indexed by physical page number and then by word
+	 * offset within the page. A page's entry is <tt>null</tt> until an
+	 * instruction is fetched from it, and is discarded whenever the page is
+	 * written.
+	 */
+	private DecodedInstruction[][] decodeCache;
+
+	/** The exception thrown for every user exception. */
+	private final MipsException exception = new MipsException();
 
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
@@ -592,68 +1278,96 @@ public final class Processor {
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
-
-			this.cause = cause;
-		}
+	/**
+	 * Return this processor's exception, set up for <i>cause</i>.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException exception(int cause) {
+		return exception.set(cause, false, 0);
+	}
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+	/**
+	 * Return this processor's exception, set up for <i>cause</i> at the bad
+	 * virtual address <i>badVAddr</i>.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the exception to throw.
+	 */
+	private MipsException exception(int cause, int badVAddr) {
+		return exception.set(cause, true, badVAddr);
+	}
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
-		}
+	/**
+	 * Deliver a user exception to the kernel: set the cause and bad virtual
+	 * address registers, complete any delayed load, and call the exception
+	 * handler.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param hasBadVAddr <tt>true</tt> if the exception has a bad virtual
+	 * address.
+	 * @param badVAddr the bad virtual address, if any.
+	 */
+	private void handleException(int cause, boolean hasBadVAddr, int badVAddr) {
+		writeRegister(regCause, cause);
 
-		public void handle() {
-			writeRegister(regCause, cause);
+		if (hasBadVAddr)
+			writeRegister(regBadVAddr, badVAddr);
 
-			if (hasBadVAddr)
-				writeRegister(regBadVAddr, badVAddr);
+		if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+			System.out.println("exception: " + exceptionNames[cause]);
 
-			if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
-				System.out.println("exception: " + exceptionNames[cause]);
+		finishLoad();
 
-			finishLoad();
+		Lib.assertTrue(exceptionHandler != null);
 
-			Lib.assertTrue(exceptionHandler != null);
+		// autograder might not want kernel to know about this exception
+		if (!Machine.autoGrader().exceptionHandler(privilege))
+			return;
 
-			// autograder might not want kernel to know about this exception
-			if (!Machine.autoGrader().exceptionHandler(privilege))
-				return;
+		exceptionHandler.run();
+	}
 
-			exceptionHandler.run();
+	/**
+	 * A user exception. Each processor throws the same preallocated instance,
+	 * which has no stack trace, so raising an exception allocates nothing.
+	 * Its fields describe the last exception raised on any user thread, so
+	 * <tt>handle()</tt> must be called before another thread can run.
+	 */
+	private class MipsException extends Exception {
+		MipsException() {
+			super(null, null, false, false);
 		}
 
-		private boolean hasBadVAddr = false;
-
-		private int cause, badVAddr;
-	}
+		MipsException set(int cause, boolean hasBadVAddr, int badVAddr) {
+			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
 
-	private class Instruction {
-		public void run() throws MipsException {
-			// hopefully this looks familiar to 152 students?
-			fetch();
-			decode();
-			execute();
-			writeBack();
+			this.cause = cause;
+			this.hasBadVAddr = hasBadVAddr;
+			this.badVAddr = badVAddr;
+			return this;
 		}
 
-		private boolean test(int flag) {
-			return Lib.test(flag, flags);
+		public void handle() {
+			handleException(cause, hasBadVAddr, badVAddr);
 		}
 
-		private void fetch() throws MipsException {
-			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
-					|| Lib.test(dbgFullDisassemble))
-				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
-						+ "\t");
+		private boolean hasBadVAddr = false;
 
-			value = readMem(registers[regPC], 4);
-		}
+		private int cause, badVAddr;
+	}
+
+	/**
+	 * The fields of an instruction that depend only on the instruction word.
+	 * Computing these is the same work every time a word is executed, so the
+	 * processor keeps them in <tt>decodeCache</tt>.
+	 */
+	static class DecodedInstruction {
+		DecodedInstruction(int value) {
+			this.value = value;
 
-		private void decode() {
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -681,9 +1395,6 @@ public final class Processor {
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
 			if (test(Mips.SIZEB))
 				size = 1;
@@ -694,9 +1405,6 @@ public final class Processor {
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
 			if (test(Mips.DSTRA))
 				dstReg = regRA;
@@ -707,6 +1415,512 @@ public final class Processor {
 			else
 				dstReg = -1;
 
+			// get imm; no branch is unsigned, so jtarget is unaffected
+			if (test(Mips.UNSIGNED)) {
+				imm &= 0xFFFF;
+			}
+		}
+
+		boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		/** The instruction word this was decoded from. */
+		final int value;
+
+		int op, rs, rt, rd, sh, func, target, imm;
+
+		int operation, format, flags;
+
+		String name;
+
+		int size, dstReg;
+
+		/** The <tt>Op</tt> for this instruction, once it has been built. */
+		Op translated = null;
+	}
+
+	/**
+	 * A straight-line run of instructions ending at the first branch, jump,
+	 * syscall or invalid instruction, or at the end of a physical page. Each
+	 * instruction is translated into an <tt>Op</tt> specialized for its
+	 * operation and operands, so executing it needs none of the decoding done
+	 * by <tt>Instruction</tt>.
+	 */
+	private class BasicBlock {
+		BasicBlock(int paddr) {
+			this.paddr = paddr;
+
+			int end = (paddr / pageSize + 1) * pageSize;
+			int length = 0;
+			while (paddr + length * 4 < end) {
+				DecodedInstruction decoded = decodeAt(paddr + length * 4,
+						memory.getInt(paddr + length * 4));
+				length++;
+
+				if (decoded.test(Mips.BRANCH)
+						|| decoded.operation == Mips.SYSCALL
+						|| decoded.operation == Mips.INVALID
+						|| decoded.operation == Mips.UNIMPL)
+					break;
+			}
+
+			words = new int[length];
+			ops = new Op[length];
+			for (int i = 0; i < length; i++) {
+				words[i] = memory.getInt(paddr + i * 4);
+				ops[i] = opAt(paddr + i * 4, words[i]);
+			}
+		}
+
+		/**
+		 * Test whether physical memory still holds the instructions this
+		 * block was translated from. The kernel may write physical memory
+		 * without telling the processor, so this is checked on every entry.
+		 * 
+		 * @return <tt>true</tt> if this block is still valid.
+		 */
+		boolean matchesMemory() {
+			for (int i = 0; i < words.length; i++) {
+				if (memory.getInt(paddr + i * 4) != words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Count one run of this block, and compile it once it has run
+		 * <tt>jitThreshold</tt> times.
+		 */
+		void countExecution() {
+			if (++executions != jitThreshold)
+				return;
+
+			DecodedInstruction[] decoded = new DecodedInstruction[words.length];
+			for (int i = 0; i < words.length; i++)
+				decoded[i] = decodeAt(paddr + i * 4, words[i]);
+
+			compiled = BlockCompiler.compile(decoded, privilege);
+			if (compiled != null)
+				compiled.processor = Processor.this;
+		}
+
+		final int paddr;
+
+		final int[] words;
+
+		final Op[] ops;
+
+		int executions = 0;
+
+		/** This block compiled to bytecode, or <tt>null</tt> if not yet. */
+		CompiledBlock compiled = null;
+	}
+
+	/**
+	 * A basic block compiled to JVM bytecode by <tt>BlockCompiler</tt>. The
+	 * generated subclass calls back into the processor through the methods
+	 * here for everything other than register arithmetic.
+	 */
+	abstract static class CompiledBlock {
+		/**
+		 * Run the whole block. The PC must be at the first instruction of the
+		 * block, outside a branch delay slot, with no delayed load pending.
+		 * 
+		 * @param registers the processor's registers.
+		 * @return the number of instructions completed, which is fewer than
+		 * the length of the block if a store overwrote translated code.
+		 * @exception MipsException if an instruction caused an exception, in
+		 * which case <tt>completed</tt> is the number of instructions before
+		 * it.
+		 */
+		abstract int run(int[] registers) throws MipsException;
+
+		int readMem(int vaddr, int size) throws MipsException {
+			return processor.readMemUntraced(vaddr, size);
+		}
+
+		void writeMem(int vaddr, int size, int value) throws MipsException {
+			processor.writeMemUntraced(vaddr, size, value);
+		}
+
+		boolean blocksInvalidated() {
+			return processor.blocksInvalidated;
+		}
+
+		void syscall() throws MipsException {
+			throw processor.exception(exceptionSyscall);
+		}
+
+		void delayedLoad(int loadTarget, int loadValue) {
+			processor.delayedLoad(loadTarget, loadValue, 0xFFFFFFFF);
+		}
+
+		Processor processor;
+
+		int completed;
+	}
+
+	/**
+	 * One translated instruction. Running it has exactly the same effect as
+	 * running the instruction through <tt>Instruction</tt>, including the
+	 * delayed load and the PC update.
+	 */
+	private abstract class Op {
+		abstract void run() throws MipsException;
+	}
+
+	/**
+	 * Return the <tt>Op</tt> for the instruction word <i>value</i> at physical
+	 * address <i>paddr</i>, translating it the first time the decoded
+	 * instruction is used.
+	 * 
+	 * @param paddr the word-aligned physical address of the instruction.
+	 * @param value the instruction word at <i>paddr</i>.
+	 * @return the translated instruction.
+	 */
+	private Op opAt(int paddr, int value) {
+		DecodedInstruction decoded = decodeAt(paddr, value);
+		if (decoded.translated == null)
+			decoded.translated = translateOp(paddr, decoded);
+
+		return decoded.translated;
+	}
+
+	/**
+	 * Translate one decoded instruction into an <tt>Op</tt>. The common
+	 * integer, load, store and control transfer instructions get their own
+	 * specialized <tt>Op</tt>; the rest are executed by
+	 * <tt>blockInstruction</tt>.
+	 * 
+	 * @param paddr the physical address of the instruction.
+	 * @param decoded the decoded instruction.
+	 * @return the translated instruction.
+	 */
+	private Op translateOp(final int paddr, final DecodedInstruction decoded) {
+		final int rs = decoded.rs;
+		final int rt = decoded.rt;
+		final int dstReg = decoded.dstReg;
+		final int imm = decoded.imm;
+		final int sh = decoded.sh;
+		final int size = decoded.size;
+		final int target = decoded.target;
+		final boolean unsigned = decoded.test(Mips.UNSIGNED);
+		final boolean src1sh = decoded.test(Mips.SRC1SH);
+		final boolean src2imm = decoded.test(Mips.SRC2IMM);
+		final int linkReg = decoded.test(Mips.DST) ? dstReg : 0;
+
+		// what's left needs the general purpose execution path
+		boolean general = decoded.test(Mips.OVERFLOW)
+				|| (decoded.test(Mips.LINK) && decoded.format != Mips.JFMT
+						&& decoded.format != Mips.RFMT);
+
+		if (!general) {
+			switch (decoded.operation) {
+			case Mips.ADD:
+				if (src2imm)
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] + imm);
+						}
+					};
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[rs] + registers[rt]);
+					}
+				};
+			case Mips.SUB:
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[rs] - registers[rt]);
+					}
+				};
+			case Mips.AND:
+				if (src2imm)
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] & imm);
+						}
+					};
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[rs] & registers[rt]);
+					}
+				};
+			case Mips.OR:
+				if (src2imm)
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] | imm);
+						}
+					};
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[rs] | registers[rt]);
+					}
+				};
+			case Mips.XOR:
+				if (src2imm)
+					return new Op() {
+						void run() {
+							retire(dstReg, registers[rs] ^ imm);
+						}
+					};
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[rs] ^ registers[rt]);
+					}
+				};
+			case Mips.NOR:
+				return new Op() {
+					void run() {
+						retire(dstReg, ~(registers[rs] | registers[rt]));
+					}
+				};
+			case Mips.LUI:
+				return new Op() {
+					void run() {
+						retire(dstReg, imm << 16);
+					}
+				};
+			case Mips.SLT:
+				if (unsigned)
+					return new Op() {
+						void run() {
+							long src1 = registers[rs] & 0xFFFFFFFFL;
+							long src2 = (src2imm ? imm : registers[rt]) & 0xFFFFFFFFL;
+							retire(dstReg, (src1 < src2) ? 1 : 0);
+						}
+					};
+				return new Op() {
+					void run() {
+						int src2 = src2imm ? imm : registers[rt];
+						retire(dstReg, (registers[rs] < src2) ? 1 : 0);
+					}
+				};
+
+			// shifts operate on the sign-extended 64-bit value of rt
+			case Mips.SLL:
+				return new Op() {
+					void run() {
+						int amount = src1sh ? sh : registers[rs];
+						retire(dstReg, registers[rt] << (amount & 0x1F));
+					}
+				};
+			case Mips.SRA:
+				return new Op() {
+					void run() {
+						int amount = src1sh ? sh : registers[rs];
+						retire(dstReg, registers[rt] >> (amount & 0x1F));
+					}
+				};
+			case Mips.SRL:
+				return new Op() {
+					void run() {
+						int amount = src1sh ? sh : registers[rs];
+						retire(dstReg, (int) (((long) registers[rt]) >>> (amount & 0x1F)));
+					}
+				};
+
+			case Mips.MULT:
+				return new Op() {
+					void run() {
+						long src1 = registers[rs];
+						long src2 = registers[rt];
+						if (unsigned) {
+							src1 &= 0xFFFFFFFFL;
+							src2 &= 0xFFFFFFFFL;
+						}
+						long product = src1 * src2;
+						registers[regLo] = (int) product;
+						registers[regHi] = (int) (product >>> 32);
+						retire(0, 0);
+					}
+				};
+			case Mips.MFLO:
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[regLo]);
+					}
+				};
+			case Mips.MFHI:
+				return new Op() {
+					void run() {
+						retire(dstReg, registers[regHi]);
+					}
+				};
+
+			case Mips.LOAD:
+				return new Op() {
+					void run() throws MipsException {
+						int value = readMemUntraced(registers[rs] + imm, size);
+						delayedLoad(dstReg, value, 0xFFFFFFFF);
+						advancePC(registers[regNextPC] + 4);
+					}
+				};
+			case Mips.STORE:
+				return new Op() {
+					void run() throws MipsException {
+						writeMemUntraced(registers[rs] + imm, size, registers[rt]);
+						retire(0, 0);
+					}
+				};
+
+			case Mips.BEQ:
+				return new Op() {
+					void run() {
+						boolean branch = (registers[rs] == registers[rt]);
+						branch(branch, imm);
+					}
+				};
+			case Mips.BNE:
+				return new Op() {
+					void run() {
+						boolean branch = (registers[rs] != registers[rt]);
+						branch(branch, imm);
+					}
+				};
+			case Mips.BLEZ:
+				return new Op() {
+					void run() {
+						branch(registers[rs] <= 0, imm);
+					}
+				};
+			case Mips.BGTZ:
+				return new Op() {
+					void run() {
+						branch(registers[rs] > 0, imm);
+					}
+				};
+			case Mips.BLTZ:
+				return new Op() {
+					void run() {
+						branch(registers[rs] < 0, imm);
+					}
+				};
+			case Mips.BGEZ:
+				return new Op() {
+					void run() {
+						branch(registers[rs] >= 0, imm);
+					}
+				};
+
+			case Mips.JUMP:
+				if (decoded.format == Mips.JFMT)
+					return new Op() {
+						void run() {
+							int nextPC = registers[regNextPC];
+							int jtarget = (nextPC & 0xF0000000) | (target << 2);
+							jump(jtarget, linkReg);
+						}
+					};
+				return new Op() {
+					void run() {
+						jump(registers[rs], linkReg);
+					}
+				};
+			}
+		}
+
+		return new Op() {
+			void run() throws MipsException {
+				blockInstruction.paddr = paddr;
+				blockInstruction.value = decoded.value;
+				blockInstruction.decode();
+				blockInstruction.execute();
+				blockInstruction.writeBack();
+			}
+		};
+	}
+
+	/**
+	 * Finish executing a conditional branch without a link.
+	 * 
+	 * @param taken <tt>true</tt> if the branch is taken.
+	 * @param imm the branch offset, in words, from the delay slot.
+	 */
+	private void branch(boolean taken, int imm) {
+		int nextPC = registers[regNextPC] + 4;
+		if (taken)
+			nextPC = registers[regNextPC] + (imm << 2);
+
+		retireJump(nextPC);
+	}
+
+	/**
+	 * Finish executing an unconditional jump, linking to <i>linkReg</i> if it
+	 * is a jump-and-link.
+	 * 
+	 * @param jtarget the address to jump to after the delay slot.
+	 * @param linkReg the link register, or 0 if the jump doesn't link.
+	 */
+	private void jump(int jtarget, int linkReg) {
+		int link = registers[regNextPC] + 4;
+
+		if (loadTarget != 0)
+			finishLoad();
+
+		if (linkReg != 0)
+			registers[linkReg] = link;
+
+		advancePC(jtarget);
+	}
+
+	private class Instruction {
+		public void run() throws MipsException {
+			// hopefully this looks familiar to 152 students?
+			fetch();
+			decode();
+
+			if (profiler != null)
+				profiler.countInstruction(registers[regPC], name);
+
+			execute();
+			writeBack();
+		}
+
+		private boolean test(int flag) {
+			return Lib.test(flag, flags);
+		}
+
+		private void fetch() throws MipsException {
+			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
+					|| Lib.test(dbgFullDisassemble))
+				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
+						+ "\t");
+
+			paddr = translateRead(registers[regPC], 4);
+			value = readPhysMem(paddr, 4);
+		}
+
+		private void decode() {
+			// the fields that depend only on the instruction word
+			DecodedInstruction decoded = decodeAt(paddr, value);
+
+			op = decoded.op;
+			rs = decoded.rs;
+			rt = decoded.rt;
+			rd = decoded.rd;
+			sh = decoded.sh;
+			func = decoded.func;
+			target = decoded.target;
+			imm = decoded.imm;
+
+			operation = decoded.operation;
+			name = decoded.name;
+			format = decoded.format;
+			flags = decoded.flags;
+
+			size = decoded.size;
+			dstReg = decoded.dstReg;
+
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -717,11 +1931,6 @@ public final class Processor {
 			else
 				jtarget = -1;
 
-			// get imm
-			if (test(Mips.UNSIGNED)) {
-				imm &= 0xFFFF;
-			}
-
 			// get addr
 			addr = registers[rs] + imm;
 
@@ -893,7 +2102,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw exception(exceptionOverflow);
 				}
 				break;
 
@@ -963,7 +2172,7 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				throw exception(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
@@ -1034,7 +2243,7 @@ public final class Processor {
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw exception(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1044,7 +2253,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw exception(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1077,7 +2286,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1094,7 +2303,7 @@ public final class Processor {
 		boolean branch;
 	}
 
-	private static class Mips {
+	static class Mips {
 		Mips() {
 		}
 
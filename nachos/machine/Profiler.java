@@ -0,0 +1,220 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Counts what user programs do on a <tt>Processor</tt>: how many times each
+ * PC and each opcode is executed, and which PCs cause page faults and TLB
+ * misses. Enabled by the <tt>Processor.profile</tt> key in
+ * <tt>nachos.conf</tt>, and printed by <tt>Machine.halt()</tt>.
+ *
+ * <p>
+ * Nachos executables carry no symbol table, so PCs are reported as an offset
+ * into the sections of the executables loaded while profiling. Every program
+ * is loaded at virtual address 0, so a PC may fall in more than one of them.
+ */
+final class Profiler {
+	/**
+	 * Count one execution of the instruction at <i>pc</i>.
+	 *
+	 * @param pc the virtual address of the instruction.
+	 * @param name the instruction's name from the opcode tables, including
+	 * its operand format. An invalid instruction is named
+	 * <tt>"invalid "</tt>.
+	 */
+	void countInstruction(int pc, String name) {
+		site(pc).executions++;
+
+		Count count = opcodes.get(name);
+		if (count == null) {
+			count = new Count();
+			opcodes.put(name, count);
+		}
+		count.executions++;
+
+		numInstructions++;
+	}
+
+	/**
+	 * Count a page fault caused by the instruction at <i>pc</i>.
+	 *
+	 * @param pc the virtual address of the instruction.
+	 */
+	void countPageFault(int pc) {
+		site(pc).pageFaults++;
+	}
+
+	/**
+	 * Count a TLB miss caused by the instruction at <i>pc</i>.
+	 *
+	 * @param pc the virtual address of the instruction.
+	 */
+	void countTLBMiss(int pc) {
+		site(pc).tlbMisses++;
+	}
+
+	/**
+	 * Remember the sections of an executable, so PCs within it can be named.
+	 *
+	 * @param coff the executable.
+	 * @param name the name of the executable's file.
+	 */
+	void addExecutable(Coff coff, String name) {
+		for (int i = 0; i < coff.getNumSections(); i++) {
+			CoffSection section = coff.getSection(i);
+			String sectionName = (name == null) ? section.getName() : name
+					+ ":" + section.getName();
+
+			// the same program is usually loaded many times
+			boolean known = false;
+			for (Region region : regions) {
+				if (region.name.equals(sectionName)
+						&& region.firstVPN == section.getFirstVPN())
+					known = true;
+			}
+
+			if (!known)
+				regions.add(new Region(sectionName, section.getFirstVPN(),
+						section.getLength()));
+		}
+	}
+
+	/**
+	 * Print the hottest PCs, the opcode mix, and the PCs that caused page
+	 * faults or TLB misses.
+	 */
+	void print() {
+		System.out.println("Profile: " + numInstructions + " instructions");
+
+		ArrayList<Integer> pcs = new ArrayList<Integer>(sites.keySet());
+		Collections.sort(pcs, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long difference = sites.get(b).executions
+						- sites.get(a).executions;
+				if (difference != 0)
+					return (difference > 0) ? 1 : -1;
+				return Integer.compareUnsigned(a, b);
+			}
+		});
+
+		System.out.println("Hot spots:");
+		for (int i = 0; i < pcs.size() && i < maxHotSpots; i++) {
+			int pc = pcs.get(i);
+			long executions = sites.get(pc).executions;
+			if (executions == 0)
+				break;
+
+			System.out.println("\t0x" + Lib.toHexString(pc) + "\t"
+					+ executions + "\t" + percent(executions) + "\t"
+					+ locate(pc));
+		}
+
+		ArrayList<String> names = new ArrayList<String>(opcodes.keySet());
+		Collections.sort(names, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long difference = opcodes.get(b).executions
+						- opcodes.get(a).executions;
+				if (difference != 0)
+					return (difference > 0) ? 1 : -1;
+				return a.compareTo(b);
+			}
+		});
+
+		System.out.println("Opcodes:");
+		for (String name : names) {
+			long executions = opcodes.get(name).executions;
+
+			// print the mnemonic without the operand format
+			System.out.println("\t" + name.substring(0, name.indexOf(' '))
+					+ "\t" + executions + "\t" + percent(executions));
+		}
+
+		boolean header = false;
+		Collections.sort(pcs, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compareUnsigned(a, b);
+			}
+		});
+		for (int pc : pcs) {
+			Site site = sites.get(pc);
+			if (site.pageFaults == 0 && site.tlbMisses == 0)
+				continue;
+
+			if (!header) {
+				System.out.println("Page faults and TLB misses:");
+				header = true;
+			}
+
+			System.out.println("\t0x" + Lib.toHexString(pc) + "\tfaults "
+					+ site.pageFaults + "\tmisses " + site.tlbMisses + "\t"
+					+ locate(pc));
+		}
+	}
+
+	private String percent(long count) {
+		if (numInstructions == 0)
+			return "0%";
+
+		return (count * 1000 / numInstructions) / 10.0 + "%";
+	}
+
+	private String locate(int pc) {
+		String location = "";
+
+		for (Region region : regions) {
+			int offset = pc - region.firstVPN * Processor.pageSize;
+			if (offset >= 0 && offset < region.numPages * Processor.pageSize) {
+				if (location.length() > 0)
+					location += ", ";
+				location += region.name + "+0x" + Integer.toHexString(offset);
+			}
+		}
+
+		return location;
+	}
+
+	private Site site(int pc) {
+		Site site = sites.get(pc);
+		if (site == null) {
+			site = new Site();
+			sites.put(pc, site);
+		}
+
+		return site;
+	}
+
+	private static class Site {
+		long executions = 0, pageFaults = 0, tlbMisses = 0;
+	}
+
+	private static class Count {
+		long executions = 0;
+	}
+
+	private static class Region {
+		Region(String name, int firstVPN, int numPages) {
+			this.name = name;
+			this.firstVPN = firstVPN;
+			this.numPages = numPages;
+		}
+
+		String name;
+
+		int firstVPN, numPages;
+	}
+
+	private long numInstructions = 0;
+
+	private HashMap<Integer, Site> sites = new HashMap<Integer, Site>();
+
+	private HashMap<String, Count> opcodes = new HashMap<String, Count>();
+
+	private ArrayList<Region> regions = new ArrayList<Region>();
+
+	private static final int maxHotSpots = 20;
+}
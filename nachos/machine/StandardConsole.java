@@ -63,6 +63,20 @@ public class StandardConsole implements SerialConsole {
 		}
 	}
 
+	private int read() {
+		EventLog log = Machine.eventLog();
+		if (log == null)
+			return in();
+
+		if (log.isReplaying())
+			return log.replayConsole();
+
+		int c = in();
+		if (c != -1)
+			log.recordConsole(c);
+		return c;
+	}
+
 	private int translateCharacter(int c) {
 		// translate win32 0x0D 0x0A sequence to single newline
 		if (c == 0x0A && prevCarriageReturn) {
@@ -91,7 +105,7 @@ public class StandardConsole implements SerialConsole {
 	private void receiveInterrupt() {
 		Lib.assertTrue(incomingKey == -1);
 
-		incomingKey = translateCharacter(in());
+		incomingKey = translateCharacter(read());
 		if (incomingKey == -1) {
 			scheduleReceiveInterrupt();
 		}
@@ -6,12 +6,24 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object, which goes on to run another TCB once this one is destroyed.
+ * 
+ * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in <tt>nachos.conf</tt> and the JVM
+ * has virtual threads, these are virtual threads, which are cheap enough to
+ * allow many more TCBs; <tt>TCB.maxThreads</tt> then needs raising as well.
+ * Setting <tt>TCB.singleCarrier</tt> too runs them all on one carrier thread,
+ * so that a context switch is a continuation switch within it. Virtual
+ * threads need Java 21, which only lets Nachos install its security manager
+ * when run with <tt>-Djava.security.manager=allow</tt>.
  * 
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -39,6 +51,35 @@ public final class TCB {
 	public static void givePrivilege(Privilege privilege) {
 		TCB.privilege = privilege;
 		privilege.tcb = new TCBPrivilege();
+
+		if (Config.getBoolean("TCB.virtualThreads", false)) {
+			/*
+			 * Only one Nachos thread runs at a time, so one carrier thread is
+			 * enough for all of them, and a context switch never leaves it.
+			 * The scheduler reads these properties when the first virtual
+			 * thread starts, and setting them needs the permission that the
+			 * security manager takes away once it is enabled.
+			 */
+			if (Config.getBoolean("TCB.singleCarrier", false)) {
+				System.setProperty("jdk.virtualThreadScheduler.parallelism",
+						"1");
+				System.setProperty("jdk.virtualThreadScheduler.maxPoolSize",
+						"1");
+			}
+
+			// virtual threads are new in Java 21, so find them reflectively
+			try {
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual")
+						.invoke(null);
+				unstartedVirtualThread = Class.forName(
+						"java.lang.Thread$Builder").getMethod("unstarted",
+						Runnable.class);
+			}
+			catch (Exception e) {
+				virtualThreadBuilder = null;
+				System.out.print(" (no virtual threads)");
+			}
+		}
 	}
 
 	/**
@@ -91,33 +132,59 @@ public final class TCB {
 
 		if (!isFirstTCB) {
 			/*
-			 * If this is not the first TCB, we have to make a new Java thread
-			 * to run it. Creating Java threads is a privileged operation.
+			 * If this is not the first TCB, it needs a Java thread of its own.
+			 * We reuse the thread of a destroyed TCB if one is idle, and make
+			 * a new one otherwise. Creating Java threads is a privileged
+			 * operation.
 			 */
-			tcbTarget = new Runnable() {
-				public void run() {
-					threadroot();
-				}
-			};
+			HostThread host = idleHostThreads.poll();
+			if (host == null) {
+				final HostThread newHost = new HostThread();
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						newHost.javaThread = newJavaThread(newHost);
+					}
+				});
+				host = newHost;
+			}
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			javaThread = host.javaThread;
 
 			/*
-			 * The Java thread hasn't yet started, but we need to get it
-			 * blocking in yield(). We do this by temporarily turning off the
-			 * current TCB, starting the new Java thread, and waiting for it to
-			 * wake us up from threadroot(). Once the new TCB wakes us up, it's
-			 * safe to context switch to the new TCB.
+			 * The Java thread isn't running this TCB yet, but we need to get
+			 * it blocking in yield(). We do this by temporarily turning off the
+			 * current TCB, handing this TCB to the Java thread, and waiting for
+			 * it to wake us up from threadroot(). Once the new TCB wakes us up,
+			 * it's safe to context switch to the new TCB.
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			host.run(this);
 			currentTCB.waitForInterrupt();
 		}
+		else if (virtualThreadBuilder != null) {
+			/*
+			 * This is the first TCB, but so that every Nachos thread is a
+			 * virtual thread, it gets a new Java thread anyway. The current
+			 * Java thread has nothing left to do. It must stay alive, because
+			 * the JVM does not wait for virtual threads, so it parks until
+			 * Nachos exits.
+			 */
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					javaThread = newJavaThread(new Runnable() {
+						public void run() {
+							threadroot();
+						}
+					});
+				}
+			});
+
+			javaThread.start();
+
+			while (true)
+				LockSupport.park();
+		}
 		else {
 			/*
 			 * This is the first TCB, so we don't need to make a new Java thread
@@ -216,6 +283,20 @@ public final class TCB {
 		return (currentTCB != null && Thread.currentThread() == currentTCB.javaThread);
 	}
 
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreadBuilder != null) {
+			try {
+				return (Thread) unstartedVirtualThread.invoke(
+						virtualThreadBuilder, target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("unable to create a virtual thread");
+			}
+		}
+
+		return new Thread(target);
+	}
+
 	private void threadroot() {
 		// this should be running the current thread
 		Lib.assertTrue(javaThread == Thread.currentThread());
@@ -291,32 +372,31 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
+	 * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
+	 * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
+	 * TCB needs to go to wait for its turn to run. This includes the ping-pong
 	 * process of starting and destroying TCBs, as well as in context switching
 	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
 	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * <tt>park()</tt> may return early, and an <tt>unpark()</tt> that comes
+	 * first is not lost, so checking the flag in a loop is enough.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
-			}
-		}
+	private void waitForInterrupt() {
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
+	 * and unparking the Java thread bound to it. Used in the ping-pong process
+	 * of starting and destroying TCBs, as well as in context switching to this
 	 * TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+		LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -342,9 +422,11 @@ public final class TCB {
 
 	/**
 	 * The maximum number of started, non-destroyed TCB's that can be in
-	 * existence.
+	 * existence. Set by <tt>TCB.maxThreads</tt> in <tt>nachos.conf</tt>, and
+	 * 250 by default.
 	 */
-	public static final int maxThreads = 250;
+	public static final int maxThreads = Config.getInteger("TCB.maxThreads",
+			250);
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -377,6 +459,14 @@ public final class TCB {
 
 	private static Privilege privilege;
 
+	/**
+	 * The <tt>Thread.Builder</tt> for virtual threads, and its
+	 * <tt>unstarted()</tt> method, or <tt>null</tt> to use platform threads.
+	 */
+	private static Object virtualThreadBuilder = null;
+
+	private static Method unstartedVirtualThread;
+
 	private static KThread toBeDestroyed = null;
 
 	/**
@@ -402,8 +492,13 @@ public final class TCB {
 	 * associated Java thread ought to run ASAP. When starting or destroying a
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
+	 * 
+	 * <p>
+	 * Volatile, because setting it is what hands control to another Java
+	 * thread: everything written before it is visible to the thread that
+	 * sees it set.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -418,7 +513,52 @@ public final class TCB {
 
 	private Runnable target;
 
-	private Runnable tcbTarget;
+	/**
+	 * A Java thread that runs TCBs one after another. When the TCB it is
+	 * running is destroyed, and <tt>threadroot()</tt> returns, the thread
+	 * waits in <tt>idleHostThreads</tt> until <tt>start()</tt> gives it
+	 * another TCB.
+	 */
+	private static class HostThread implements Runnable {
+		void run(TCB tcb) {
+			this.tcb = tcb;
+
+			if (!started) {
+				started = true;
+				javaThread.start();
+			}
+			else {
+				LockSupport.unpark(javaThread);
+			}
+		}
+
+		public void run() {
+			while (true) {
+				TCB next;
+				while ((next = tcb) == null)
+					LockSupport.park(this);
+				tcb = null;
+
+				next.threadroot();
+
+				idleHostThreads.add(this);
+			}
+		}
+
+		Thread javaThread;
+
+		private volatile TCB tcb = null;
+
+		private boolean started = false;
+	}
+
+	/**
+	 * Java threads whose TCBs have been destroyed, ready for reuse. A doomed
+	 * TCB's thread adds itself while the TCB that destroyed it runs, so the
+	 * queue must be safe to use from both.
+	 */
+	private static ConcurrentLinkedQueue<HostThread> idleHostThreads =
+			new ConcurrentLinkedQueue<HostThread>();
 
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
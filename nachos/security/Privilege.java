@@ -30,6 +30,7 @@ import java.security.PrivilegedActionException;
  * <li>advancing the simulated time
  * <li>accessing machine statistics
  * <li>installing a console
+ * <li>saving and restoring checkpoints
  * <li>flushing the simulated processor's pipeline
  * <li>approving TCB operations
  * </ol>
@@ -133,6 +134,34 @@ public abstract class Privilege {
 		 * @param console the new hardware console.
 		 */
 		public void setConsole(SerialConsole console);
+
+		/**
+		 * Save a checkpoint of the simulated hardware in a file in the test
+		 * directory: the statistics, the random number generator, and the
+		 * processor's registers, TLB and physical memory.
+		 * 
+		 * <p>
+		 * Kernel state, such as threads, pending interrupts, page tables and
+		 * open files, lives in Java objects and is not saved. Whoever restores
+		 * a checkpoint must rebuild it.
+		 * 
+		 * @param name the name of the checkpoint file, which must not contain
+		 * a path separator.
+		 * @return <tt>true</tt> if the checkpoint was written.
+		 */
+		public boolean checkpoint(String name);
+
+		/**
+		 * Restore the simulated hardware from a checkpoint written by
+		 * <tt>checkpoint()</tt>, possibly in an earlier run of Nachos with the
+		 * same configuration. Pending interrupts keep their scheduled times,
+		 * so restoring a different time moves them relative to the present.
+		 * 
+		 * @param name the name of the checkpoint file, which must not contain
+		 * a path separator.
+		 * @return <tt>true</tt> if the checkpoint was restored.
+		 */
+		public boolean restoreCheckpoint(String name);
 	}
 
 	/**
@@ -157,6 +186,28 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Advance the simulated time as if <tt>tick(inKernelMode)</tt> had
+		 * been called <i>count</i> times in a row. The caller must make sure
+		 * that no interrupt becomes due before the last of these ticks, for
+		 * example by using <tt>ticksUntilNextInterrupt()</tt>.
+		 * 
+		 * @param inKernelMode <tt>true</tt> if the current thread is running
+		 * kernel code, <tt>false</tt> if the current thread is running MIPS
+		 * user code.
+		 * @param count the number of ticks to advance by.
+		 */
+		public void tick(boolean inKernelMode, int count);
+
+		/**
+		 * Return the amount of simulated time until the next pending interrupt
+		 * is due.
+		 * 
+		 * @return the number of ticks until the next interrupt is due, or
+		 * <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+		 */
+		public long ticksUntilNextInterrupt();
 	}
 
 	/**
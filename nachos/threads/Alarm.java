@@ -1,11 +1,15 @@
 package nachos.threads;
 
 import nachos.machine.*;
-import java.util.PriorityQueue;
 
 /**
  * Uses the hardware timer to provide preemption and allows threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Sleeping threads and timers are kept in a hierarchical timing wheel, so
+ * adding, cancelling and expiring one takes constant time however many are
+ * waiting.
  */
 public class Alarm {
 
@@ -21,17 +25,61 @@ public class Alarm {
         }
     }
     
+    // Test cancellable and periodic timers
+    public static void alarmTest2() {
+        final int[] runs = new int[2];
+        Timeout once = ThreadedKernel.alarm.schedule(5000, new Runnable() {
+            public void run() {
+                runs[0]++;
+            }
+        });
+        Timeout periodic = ThreadedKernel.alarm.schedulePeriodic(1000, new Runnable() {
+            public void run() {
+                runs[1]++;
+            }
+        });
+        boolean cancelled = ThreadedKernel.alarm.cancel(once);
+        ThreadedKernel.alarm.waitUntil(10*1000);
+        ThreadedKernel.alarm.cancel(periodic);
+        System.out.println ("alarmTest2: cancelled " + cancelled + ", one-shot ran "
+                + runs[0] + " times, periodic ran " + runs[1] + " times");
+    }
+
+    // Sleep past the range of the wheel, while a timer that is still out
+    // of range when the wheel wraps around waits in the overflow list
+    public static void alarmTest3() {
+        final int[] runs = new int[1];
+        Timeout far = ThreadedKernel.alarm.schedule(1L << 31, new Runnable() {
+            public void run() {
+                runs[0]++;
+            }
+        });
+        long d = (1L << 30) + 1000;
+        long t0 = Machine.timer().getTime();
+        ThreadedKernel.alarm.waitUntil(d);
+        long t1 = Machine.timer().getTime();
+        boolean cancelled = ThreadedKernel.alarm.cancel(far);
+        Lib.assertTrue(t1 - t0 >= d && cancelled && runs[0] == 0);
+        System.out.println ("alarmTest3: waited for " + (t1 - t0) + " ticks");
+    }
+
     // Implement more test methods here ...
     // Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
     public static void selfTest() {
     alarmTest1();
+    alarmTest2();
+    alarmTest3();
     // Invoke your other test methods here ...
     }
 
-    // Priority queue to store sleeping threads, ordered by wake-up time
-    private PriorityQueue<WaitingThread> waitQueue = new PriorityQueue<WaitingThread>();
-
     public Alarm() {
+        for (int level = 0; level < numLevels; level++)
+            for (int slot = 0; slot < numSlots; slot++)
+                wheel[level][slot] = new Timeout(null, null, 0, 0);
+
+        timeSlice = Config.getInteger("Alarm.timeSlice", 1);
+        Lib.assertTrue(timeSlice > 0);
+
         // Set the timer interrupt handler to call timerInterrupt() periodically
         Machine.timer().setInterruptHandler(new Runnable() {
             public void run() {
@@ -42,20 +90,33 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called periodically by the hardware timer.
-     * It checks for threads whose wait time has expired and wakes them up.
+     * It wakes up threads whose wait time has expired and runs expired timers.
+     *
+     * The current thread yields when a thread with a higher effective priority
+     * was woken up, or at the end of its time slice. <tt>Alarm.timeSlice</tt> in
+     * <tt>nachos.conf</tt> sets the length of a time slice in timer interrupts;
+     * it defaults to 1, so that every timer interrupt is a context switch.
      */
     public void timerInterrupt() {
         boolean intStatus = Machine.interrupt().disable(); // alwasy to disable interrupts
         long currentTime = Machine.timer().getTime();
 
-        // Wake up all threads whose wake time has expired
-        while (!waitQueue.isEmpty() && waitQueue.peek().wakeTime <= currentTime) {
-            WaitingThread waitingThread = waitQueue.poll();
-            waitingThread.thread.ready(); // you move the thread to the ready queue 
+        preempt = false;
+        advance(currentTime);
+
+        KThread thread = KThread.currentThread();
+        if (thread != sliceOwner) {
+            sliceOwner = thread;
+            sliceInterrupts = 0;
         }
 
+        boolean yield = preempt || ++sliceInterrupts >= timeSlice;
+        if (yield)
+            sliceInterrupts = 0;
+
         Machine.interrupt().restore(intStatus); // you need to restore interrupts
-        KThread.yield(); // allows all threads to run 
+        if (yield)
+            KThread.yield(); // allows all threads to run
     }
 
     /**
@@ -71,8 +132,7 @@ public class Alarm {
 
         boolean intStatus = Machine.interrupt().disable(); // will have to disable interrupts
 
-        WaitingThread waitRecord = new WaitingThread(KThread.currentThread(), wakeTime);
-        waitQueue.add(waitRecord); // now adding 
+        insert(new Timeout(KThread.currentThread(), null, wakeTime, 0));
 
         KThread.sleep(); // Put one thread to sleep
 
@@ -80,22 +140,262 @@ public class Alarm {
     }
 
     /**
-     * Helper class to store waiting threads.
+     * Run <i>handler</i> in the first timer interrupt at least <i>x</i> ticks
+     * from now. The handler runs with interrupts disabled, and must not block.
+     *
+     * @param x the minimum number of clock ticks to wait.
+     * @param handler the handler to run.
+     * @return a handle that can be passed to <tt>cancel()</tt>.
+     */
+    public Timeout schedule(long x, Runnable handler) {
+        Lib.assertTrue(handler != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        Timeout timeout = new Timeout(null, handler,
+                Machine.timer().getTime() + Math.max(x, 0), 0);
+        insert(timeout);
+
+        Machine.interrupt().restore(intStatus);
+        return timeout;
+    }
+
+    /**
+     * Run <i>handler</i> in a timer interrupt every <i>period</i> ticks,
+     * starting <i>period</i> ticks from now, until the returned handle is
+     * cancelled. A handler that falls behind skips the periods it missed.
+     *
+     * @param period the number of clock ticks between runs.
+     * @param handler the handler to run.
+     * @return a handle that can be passed to <tt>cancel()</tt>.
+     */
+    public Timeout schedulePeriodic(long period, Runnable handler) {
+        Lib.assertTrue(period > 0 && handler != null);
+
+        boolean intStatus = Machine.interrupt().disable();
+
+        Timeout timeout = new Timeout(null, handler,
+                Machine.timer().getTime() + period, period);
+        insert(timeout);
+
+        Machine.interrupt().restore(intStatus);
+        return timeout;
+    }
+
+    /**
+     * Cancel a timer returned by <tt>schedule()</tt> or
+     * <tt>schedulePeriodic()</tt>. A handler may cancel its own timer.
+     *
+     * @param timeout the timer to cancel.
+     * @return <tt>true</tt> if the timer was pending, <tt>false</tt> if it
+     * had already run or been cancelled.
+     */
+    public boolean cancel(Timeout timeout) {
+        boolean intStatus = Machine.interrupt().disable();
+
+        boolean pending = timeout.prev != null;
+        if (pending) {
+            unlink(timeout);
+            numTimeouts--;
+        }
+        timeout.period = 0;
+
+        Machine.interrupt().restore(intStatus);
+        return pending;
+    }
+
+    /**
+     * Move the wheel forward to <i>currentTime</i>, waking up threads and
+     * running handlers whose time has come, in order of their wake times.
+     */
+    private void advance(long currentTime) {
+        long target = currentTime >> granularityBits;
+
+        // nothing to cascade, so jump straight to the target slot
+        if (numTimeouts == 0) {
+            current = Math.max(current, target);
+            return;
+        }
+
+        while (true) {
+            collectDue(wheel[0][(int) current & slotMask], currentTime);
+            if (current >= target)
+                break;
+
+            current++;
+            cascade();
+        }
+
+        while (due.next != due) {
+            Timeout timeout = due.next;
+            unlink(timeout);
+            numTimeouts--;
+            expire(timeout, currentTime);
+        }
+    }
+
+    /**
+     * Move the timers in <i>slot</i> that are due at <i>currentTime</i> to
+     * the due list, keeping it sorted by wake time. A slot covers a range of
+     * times, so the last slot reached may hold timers that are not due yet.
      */
-    private class WaitingThread implements Comparable<WaitingThread> {
-        KThread thread;
-        long wakeTime;
+    private void collectDue(Timeout slot, long currentTime) {
+        Timeout timeout = slot.next;
+        while (timeout != slot) {
+            Timeout next = timeout.next;
+
+            if (timeout.wakeTime <= currentTime) {
+                unlink(timeout);
+
+                Timeout after = due.prev;
+                while (after != due && after.wakeTime > timeout.wakeTime)
+                    after = after.prev;
+                link(after, timeout);
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * Called when <tt>current</tt> enters a new level-0 revolution: spread
+     * the timers of the higher-level slots just reached over the lower levels.
+     */
+    private void cascade() {
+        if ((current & slotMask) != 0)
+            return;
+
+        for (int level = 1; level < numLevels; level++) {
+            int slot = (int) (current >> (slotBits * level)) & slotMask;
+            reinsert(wheel[level][slot]);
+
+            // a level moves only when the level below it wraps around
+            if (slot != 0)
+                return;
+        }
+
+        reinsert(overflow);
+    }
+
+    /**
+     * Put the timers in <i>slot</i> back where they now belong. The list is
+     * detached first, because a timer that is still out of range goes back
+     * onto the overflow list it came from.
+     */
+    private void reinsert(Timeout slot) {
+        if (slot.next == slot)
+            return;
+
+        Timeout timeout = slot.next;
+        slot.prev.next = null;
+        slot.prev = slot.next = slot;
+
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            timeout.prev = timeout.next = null;
+            numTimeouts--;
+            insert(timeout);
+            timeout = next;
+        }
+    }
+
+    private void expire(Timeout timeout, long currentTime) {
+        if (timeout.thread != null) {
+            timeout.thread.ready(); // you move the thread to the ready queue
+
+            if (ThreadedKernel.scheduler.getEffectivePriority(timeout.thread) >
+                ThreadedKernel.scheduler.getEffectivePriority())
+                preempt = true;
+            return;
+        }
 
-        WaitingThread(KThread thread, long wakeTime) {
+        // put a periodic timer back first, so its handler can cancel it
+        if (timeout.period > 0) {
+            timeout.wakeTime += timeout.period;
+            if (timeout.wakeTime <= currentTime)
+                timeout.wakeTime = currentTime + timeout.period;
+            insert(timeout);
+        }
+
+        timeout.handler.run();
+    }
+
+    /**
+     * Add a timer to the wheel. A timer less than <tt>numSlots</tt> slots
+     * away goes into level 0; each further level holds timers
+     * <tt>numSlots</tt> times further away, in slots <tt>numSlots</tt> times
+     * wider. Timers beyond the last level wait in the overflow list.
+     */
+    private void insert(Timeout timeout) {
+        long unit = Math.max(timeout.wakeTime >> granularityBits, current);
+        long delta = unit - current;
+
+        numTimeouts++;
+
+        for (int level = 0; level < numLevels; level++) {
+            if (delta < 1L << (slotBits * (level + 1))) {
+                int slot = (int) (unit >> (slotBits * level)) & slotMask;
+                link(wheel[level][slot].prev, timeout);
+                return;
+            }
+        }
+
+        link(overflow.prev, timeout);
+    }
+
+    private static void link(Timeout after, Timeout timeout) {
+        timeout.prev = after;
+        timeout.next = after.next;
+        after.next.prev = timeout;
+        after.next = timeout;
+    }
+
+    private static void unlink(Timeout timeout) {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = timeout.next = null;
+    }
+
+    /**
+     * A sleeping thread or a timer waiting in the wheel. Also used, with no
+     * thread or handler, as the head of each slot's circular list.
+     */
+    public static class Timeout {
+        private Timeout(KThread thread, Runnable handler, long wakeTime,
+                        long period) {
             this.thread = thread;
+            this.handler = handler;
             this.wakeTime = wakeTime;
+            this.period = period;
+            this.prev = this.next = this;
         }
 
-        // Implementing comparable interface
-        public int compareTo(WaitingThread other) {
-            return (this.wakeTime < other.wakeTime) ? -1 : ((this.wakeTime > other.wakeTime) ? 1 : 0);
-        }
+        private KThread thread;
+        private Runnable handler;
+        private long wakeTime;
+        private long period;
+        private Timeout prev, next;
     }
+
+    /** Level-0 slots are 2^granularityBits ticks wide. */
+    private static final int granularityBits = 6;
+    private static final int slotBits = 6;
+    private static final int numSlots = 1 << slotBits;
+    private static final int slotMask = numSlots - 1;
+    private static final int numLevels = 4;
+
+    private Timeout[][] wheel = new Timeout[numLevels][numSlots];
+    private Timeout overflow = new Timeout(null, null, 0, 0);
+    private Timeout due = new Timeout(null, null, 0, 0);
+
+    /** The level-0 slot, in units of its width, that the wheel is at. */
+    private long current = 0;
+    private int numTimeouts = 0;
+
+    private boolean preempt;
+    private int timeSlice;
+    private KThread sliceOwner = null;
+    private int sliceInterrupts = 0;
 }
 
 
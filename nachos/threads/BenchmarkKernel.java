@@ -0,0 +1,370 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures the thread primitives instead of testing them:
+ * context switches, fork and join, and handoffs through semaphores, locks and
+ * condition variables, and communicators.
+ *
+ * <p>
+ * Each benchmark runs <tt>Benchmark.iterations</tt> operations per round. It
+ * runs <tt>Benchmark.warmupRounds</tt> rounds that are not reported, so the
+ * JVM can compile the code under test, then <tt>Benchmark.rounds</tt> measured
+ * rounds. For each benchmark the kernel prints the fastest and the mean wall
+ * clock time per operation, and the simulated ticks per operation.
+ *
+ * <p>
+ * Two workloads measure the scheduler rather than the primitives, in
+ * simulated ticks: how late a thread that keeps sleeping wakes up while
+ * <tt>numHogs</tt> threads that never block use the processor, and how the
+ * processor is shared among threads that never block but have different
+ * priorities, both when the timer preempts them and when they yield after
+ * every few ticks.
+ *
+ * <p>
+ * The suite runs under the scheduler named by
+ * <tt>ThreadedKernel.scheduler</tt>, so comparing schedulers means running it
+ * once with each. The <tt>bench</tt> directory has a <tt>nachos.conf</tt> for
+ * this kernel.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchmarkKernel() {
+		super();
+	}
+
+	/**
+	 * Initialize this kernel, and read the benchmark settings.
+	 */
+	public void initialize(String[] args) {
+		super.initialize(args);
+
+		iterations = Config.getInteger("Benchmark.iterations", 2000);
+		warmupRounds = Config.getInteger("Benchmark.warmupRounds", 3);
+		rounds = Config.getInteger("Benchmark.rounds", 5);
+
+		Lib.assertTrue(iterations > 0 && warmupRounds >= 0 && rounds > 0);
+	}
+
+	/**
+	 * The benchmarks replace the self tests, so this method does nothing.
+	 */
+	public void selfTest() {
+	}
+
+	/**
+	 * Run each benchmark and print its results.
+	 */
+	public void run() {
+		System.out.println("Benchmarking with " + scheduler.getClass().getName()
+				+ ", " + iterations + " operations per round, " + rounds
+				+ " rounds");
+
+		measure("yield ping-pong", new Benchmark() {
+			void run(final int n) {
+				KThread other = fork(new Runnable() {
+					public void run() {
+						for (int i = 0; i < n; i++)
+							KThread.yield();
+					}
+				});
+
+				for (int i = 0; i < n; i++)
+					KThread.yield();
+
+				other.join();
+			}
+		});
+
+		measure("fork and join", new Benchmark() {
+			void run(int n) {
+				Runnable nothing = new Runnable() {
+					public void run() {
+					}
+				};
+
+				for (int i = 0; i < n; i++)
+					fork(nothing).join();
+			}
+		});
+
+		measure("semaphore ping-pong", new Benchmark() {
+			void run(final int n) {
+				final Semaphore ping = new Semaphore(0);
+				final Semaphore pong = new Semaphore(0);
+
+				KThread other = fork(new Runnable() {
+					public void run() {
+						for (int i = 0; i < n; i++) {
+							ping.P();
+							pong.V();
+						}
+					}
+				});
+
+				for (int i = 0; i < n; i++) {
+					ping.V();
+					pong.P();
+				}
+
+				other.join();
+			}
+		});
+
+		measure("lock/condition handoff", new Benchmark() {
+			void run(final int n) {
+				final Lock lock = new Lock();
+				final Condition2 turnChanged = new Condition2(lock);
+				final int[] turn = new int[] { 0 };
+
+				KThread other = fork(new Turns(n, 1, lock, turnChanged, turn));
+				new Turns(n, 0, lock, turnChanged, turn).run();
+
+				other.join();
+			}
+		});
+
+		measure("speak/listen pair", new Benchmark() {
+			void run(final int n) {
+				final Communicator communicator = new Communicator();
+
+				KThread listener = fork(new Runnable() {
+					public void run() {
+						for (int i = 0; i < n; i++)
+							communicator.listen();
+					}
+				});
+
+				for (int i = 0; i < n; i++)
+					communicator.speak(i);
+
+				listener.join();
+			}
+		});
+
+		measureLateness();
+		measureShares(false);
+		measureShares(true);
+	}
+
+	/**
+	 * Sleep <tt>numNaps</tt> times for <tt>napTicks</tt> ticks each, while
+	 * <tt>numHogs</tt> threads use the processor, and print how late this
+	 * thread woke up on average and at worst.
+	 */
+	private void measureLateness() {
+		Hogs hogs = new Hogs(new int[numHogs], false, Long.MAX_VALUE);
+
+		long total = 0, worst = 0;
+		for (int i = 0; i < numNaps; i++) {
+			long wakeTime = Machine.timer().getTime() + napTicks;
+			alarm.waitUntil(napTicks);
+
+			long lateness = Machine.timer().getTime() - wakeTime;
+			total += lateness;
+			worst = Math.max(worst, lateness);
+		}
+
+		hogs.stop();
+
+		System.out.println(String.format(
+				"%-24s %10d ticks mean %10d ticks worst", "wakeup lateness",
+				total / numNaps, worst));
+	}
+
+	/**
+	 * Run a thread that never blocks at each of <tt>shareSteps</tt> from the
+	 * default priority for <tt>shareTicks</tt> ticks, and print each one's
+	 * share of the work they did. If <i>yielding</i> is <tt>true</tt>, the
+	 * threads yield after every pass instead of waiting for the timer, so the
+	 * scheduler has to account for many runs of a few ticks each.
+	 */
+	private void measureShares(boolean yielding) {
+		Hogs hogs = new Hogs(shareSteps, yielding, Machine.timer().getTime()
+				+ shareTicks);
+		hogs.join();
+
+		long total = 0;
+		for (int i = 0; i < shareSteps.length; i++)
+			total += hogs.work[i];
+
+		for (int i = 0; i < shareSteps.length; i++) {
+			System.out.println(String.format("%-24s %10d passes %8.1f%%",
+					(yielding ? "yielding" : "share") + " at priority "
+							+ hogs.priorities[i], hogs.work[i],
+					100.0 * hogs.work[i] / Math.max(total, 1)));
+		}
+	}
+
+	private void measure(String name, Benchmark benchmark) {
+		for (int i = 0; i < warmupRounds; i++)
+			benchmark.run(iterations);
+
+		long best = Long.MAX_VALUE, total = 0;
+		long startTicks = Machine.timer().getTime();
+
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			benchmark.run(iterations);
+			long elapsed = System.nanoTime() - start;
+
+			best = Math.min(best, elapsed);
+			total += elapsed;
+		}
+
+		long ticks = Machine.timer().getTime() - startTicks;
+
+		System.out.println(String.format(
+				"%-24s %10d ns/op best %10d ns/op mean %8d ticks/op", name,
+				best / iterations, total / rounds / iterations, ticks / rounds
+						/ iterations));
+	}
+
+	private static KThread fork(Runnable target) {
+		KThread thread = new KThread(target).setName("benchmark");
+		thread.fork();
+		return thread;
+	}
+
+	/**
+	 * One round of a benchmark, performing <i>n</i> operations.
+	 */
+	private static abstract class Benchmark {
+		abstract void run(int n);
+	}
+
+	/**
+	 * Threads that never block, until they are stopped or a deadline passes.
+	 * Each pass of a hog's loop enables interrupts, which advances the
+	 * simulated time, so the hogs keep the processor busy until the timer
+	 * preempts them or, if they are yielding, until the end of the pass.
+	 */
+	private static class Hogs {
+		/**
+		 * Fork a hog for each element of <i>steps</i>. A hog first moves its
+		 * own priority that many steps up, or down if it is negative, as far
+		 * as the scheduler allows. Once every hog has, they run until they are
+		 * stopped or the time is <i>until</i>, yielding after every pass if
+		 * <i>yielding</i> is <tt>true</tt>.
+		 */
+		Hogs(final int[] steps, final boolean yielding, final long until) {
+			threads = new KThread[steps.length];
+			work = new long[steps.length];
+			priorities = new int[steps.length];
+
+			final Semaphore ready = new Semaphore(0);
+			final Semaphore start = new Semaphore(0);
+
+			for (int i = 0; i < steps.length; i++) {
+				final int hog = i;
+				threads[i] = fork(new Runnable() {
+					public void run() {
+						for (int j = 0; j < steps[hog]; j++)
+							scheduler.increasePriority();
+						for (int j = 0; j > steps[hog]; j--)
+							scheduler.decreasePriority();
+
+						boolean intStatus = Machine.interrupt().disable();
+						priorities[hog] = scheduler.getPriority();
+						Machine.interrupt().restore(intStatus);
+
+						ready.V();
+						start.P();
+
+						while (!stopped && Machine.timer().getTime() < until) {
+							intStatus = Machine.interrupt().disable();
+							Machine.interrupt().restore(intStatus);
+							work[hog]++;
+
+							if (yielding)
+								KThread.yield();
+						}
+					}
+				});
+			}
+
+			for (int i = 0; i < steps.length; i++)
+				ready.P();
+			for (int i = 0; i < steps.length; i++)
+				start.V();
+		}
+
+		/**
+		 * Stop the hogs and wait for them to finish.
+		 */
+		void stop() {
+			stopped = true;
+			join();
+		}
+
+		/**
+		 * Wait for the hogs to finish.
+		 */
+		void join() {
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+		}
+
+		/** The passes each hog made through its loop. */
+		long[] work;
+
+		/** The priority each hog ran at. */
+		int[] priorities;
+
+		private KThread[] threads;
+
+		private boolean stopped = false;
+	}
+
+	/**
+	 * Take <i>n</i> turns with another thread, handing the turn over through a
+	 * lock and a condition variable.
+	 */
+	private static class Turns implements Runnable {
+		Turns(int n, int me, Lock lock, Condition2 turnChanged, int[] turn) {
+			this.n = n;
+			this.me = me;
+			this.lock = lock;
+			this.turnChanged = turnChanged;
+			this.turn = turn;
+		}
+
+		public void run() {
+			for (int i = 0; i < n; i++) {
+				lock.acquire();
+				while (turn[0] != me)
+					turnChanged.sleep();
+
+				turn[0] = 1 - me;
+				turnChanged.wake();
+				lock.release();
+			}
+		}
+
+		private int n, me;
+
+		private Lock lock;
+
+		private Condition2 turnChanged;
+
+		private int[] turn;
+	}
+
+	private int iterations;
+
+	private int warmupRounds;
+
+	private int rounds;
+
+	private static final int numHogs = 5;
+
+	private static final int numNaps = 200, napTicks = 1000;
+
+	/** The priority of each hog in the share workload, from the default. */
+	private static final int[] shareSteps = { -1, 0, 3, 6 };
+
+	private static final int shareTicks = 2000000;
+}
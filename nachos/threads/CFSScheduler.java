@@ -0,0 +1,247 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A scheduler that shares the processor fairly, in the style of the Linux
+ * completely fair scheduler. Every thread has a <i>virtual runtime</i>: the
+ * ticks it has run, as measured by the timer, scaled down by its weight.
+ * Ready threads are kept in a red-black tree ordered by virtual runtime, and
+ * the next thread to run is always the one that has run least, found in
+ * O(log n) time. Every other queue is a FIFO queue, as in a round-robin
+ * scheduler.
+ *
+ * <p>
+ * Weights come from priorities, which have the same range as those of a
+ * <tt>PriorityScheduler</tt>. A thread of the default priority has weight
+ * 1024, and each priority above or below it is worth about 25% more or less
+ * processor time, so a thread of priority 7 gets almost five times the time
+ * of a thread of priority 0. Priorities are not donated.
+ *
+ * <p>
+ * A thread that wakes up is not allowed to have fallen further behind than
+ * the thread that has run least, so that it cannot take the processor for as
+ * long as it slept.
+ */
+public class CFSScheduler extends RoundRobinScheduler {
+	/**
+	 * Allocate a new fair scheduler.
+	 */
+	public CFSScheduler() {
+	}
+
+	/**
+	 * Allocate the ready queue, ordered by virtual runtime.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return new FairQueue();
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getThreadState(thread).priority;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getThreadState(thread).priority = priority;
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		boolean changed = priority != priorityMaximum;
+		if (changed)
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		boolean changed = priority != priorityMinimum;
+		if (changed)
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	/**
+	 * The default priority for a new thread.
+	 */
+	public static final int priorityDefault = PriorityScheduler.priorityDefault;
+
+	/**
+	 * The minimum priority that a thread can have.
+	 */
+	public static final int priorityMinimum = PriorityScheduler.priorityMinimum;
+
+	/**
+	 * The maximum priority that a thread can have.
+	 */
+	public static final int priorityMaximum = PriorityScheduler.priorityMaximum;
+
+	private ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState(thread);
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private class FairQueue extends ThreadQueue {
+		/**
+		 * Add a thread to the tree. If the thread is the current thread, it is
+		 * yielding, so charge it for the time it ran first; otherwise it is
+		 * waking up, or new, so bring it level with the other threads.
+		 *
+		 * @param thread the thread to add.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.dispatchTime >= 0)
+				state.charge(Machine.timer().getTime());
+			else
+				state.vruntime = Math.max(state.vruntime, minVruntime);
+
+			ready.add(state);
+		}
+
+		/**
+		 * Remove the thread with the smallest virtual runtime. If the current
+		 * thread did not yield, it is blocking or finishing, so charge it for
+		 * the time it ran first.
+		 *
+		 * @return the thread to run next, or <tt>null</tt> if there are no
+		 * ready threads.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long time = Machine.timer().getTime();
+
+			ThreadState current = getThreadState(KThread.currentThread());
+			if (current.dispatchTime >= 0)
+				current.charge(time);
+
+			if (ready.isEmpty())
+				return null;
+
+			ThreadState next = ready.first();
+			ready.remove(next);
+
+			minVruntime = Math.max(minVruntime, next.vruntime);
+			next.dispatchTime = time;
+			return next.thread;
+		}
+
+		/**
+		 * The first thread is given the processor without being dispatched by
+		 * <tt>nextThread()</tt>. Assert that no threads are ready.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Lib.assertTrue(ready.isEmpty());
+		}
+
+		/**
+		 * Print out the ready threads and their virtual runtimes.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (Iterator<ThreadState> i = ready.iterator(); i.hasNext();) {
+				ThreadState state = i.next();
+				System.out.print(state.thread + "(" + state.vruntime + ") ");
+			}
+		}
+
+		/**
+		 * The ready threads, by virtual runtime and then by thread ID.
+		 */
+		private TreeSet<ThreadState> ready = new TreeSet<ThreadState>(
+				new Comparator<ThreadState>() {
+					public int compare(ThreadState a, ThreadState b) {
+						if (a.vruntime < b.vruntime)
+							return -1;
+						else if (a.vruntime > b.vruntime)
+							return 1;
+						else
+							return a.thread.compareTo(b.thread);
+					}
+				});
+
+		/**
+		 * The smallest virtual runtime of any thread that has been picked to
+		 * run. It never decreases.
+		 */
+		private long minVruntime = 0;
+	}
+
+	private class ThreadState {
+		ThreadState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Add the ticks run since this thread was dispatched to its virtual
+		 * runtime, scaled by its weight. The remainder of the division is
+		 * carried over to the next charge, so that a thread that runs for a
+		 * few ticks at a time is not undercharged. Its virtual runtime must not
+		 * change while it is in the tree, so this is only called when it is
+		 * not.
+		 */
+		void charge(long time) {
+			long ticks = time - dispatchTime;
+			dispatchTime = -1;
+
+			int weight = weights[priority - priorityMinimum];
+			long scaled = ticks * weights[priorityDefault - priorityMinimum]
+					+ remainder;
+			vruntime += scaled / weight;
+			remainder = scaled % weight;
+		}
+
+		private KThread thread;
+
+		private int priority = priorityDefault;
+
+		/** The ticks this thread has run, scaled by its weight. */
+		private long vruntime = 0;
+
+		/** The part of the last charge that was too small to add yet. */
+		private long remainder = 0;
+
+		/** When the thread was last dispatched, or -1 if it is not running. */
+		private long dispatchTime = -1;
+	}
+
+	/**
+	 * The weight of each priority, from <tt>priorityMinimum</tt> up. These are
+	 * the Linux weights of nice levels 1 through -6.
+	 */
+	private static final int[] weights = { 820, 1024, 1277, 1586, 1991, 2501,
+			3121, 3906 };
+}
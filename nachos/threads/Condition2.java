@@ -103,6 +103,7 @@ public class Condition2 {
     private static class InterlockTest {
         private static Lock lock;
         private static Condition2 cv;
+        private static Semaphore done;
 
         private static class Interlocker implements Runnable {
             public void run () {
@@ -113,12 +114,14 @@ public class Condition2 {
                     cv.sleep();  // wait
                 }
                 lock.release();
+                done.V();
             }
         }
 
         public InterlockTest() {
             lock = new Lock();
             cv = new Condition2(lock);
+            done = new Semaphore(0);
 
             KThread ping = new KThread(new Interlocker());
             ping.setName("ping");
@@ -128,17 +131,13 @@ public class Condition2 {
             ping.fork();
             pong.fork();
 
-            // We need to wait for ping to finish, and the proper way
-            // to do so is to join on ping.  (Note that, when ping is
-            // done, pong is sleeping on the condition variable; if we
-            // were also to join on pong, we would block forever.)
-            // For this to work, join must be implemented.  If you
-            // have not implemented join yet, then comment out the
-            // call to join and instead uncomment the loop with
-            // yields; the loop has the same effect, but is a kludgy
-            // way to do it.
-            ping.join();
-            // for (int i = 0; i < 50; i++) { KThread.currentThread().yield(); }
+            // We need to wait for one of them to finish. Whichever
+            // takes the lock first finishes, and the other is left
+            // sleeping on the condition variable, so joining on both,
+            // or on the wrong one, would block forever. Which one runs
+            // first is up to the scheduler: a lottery or fair scheduler
+            // may well run pong first. So wait for whichever finishes.
+            done.P();
         }
     }
 
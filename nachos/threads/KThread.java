@@ -58,7 +58,7 @@ public class KThread {
 			tcb = new TCB();
 		}
 		else {
-			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
+			readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 			readyQueue.acquire(this);
 
 			currentThread = this;
@@ -330,8 +330,11 @@ public class KThread {
 
 		idleThread = new KThread(new Runnable() {
 			public void run() {
-				while (true)
+				while (true) {
+					// skip ahead to the next interrupt, which may wake a thread
+					Machine.interrupt().idle();
 					KThread.yield();
+				}
 			}
 		});
 		idleThread.setName("idle");
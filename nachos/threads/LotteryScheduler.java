@@ -2,9 +2,8 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -41,7 +40,354 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return (int) Math.min(getLotteryState(thread).effectiveTickets,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		boolean changed = priority != priorityMaximum;
+		if (changed)
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread thread = KThread.currentThread();
+		int priority = getPriority(thread);
+		boolean changed = priority != priorityMinimum;
+		if (changed)
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return changed;
+	}
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the scheduling state of the specified thread.
+	 * 
+	 * @param thread the thread whose scheduling state to return.
+	 * @return the scheduling state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+	 * 
+	 * <p>
+	 * Each waiter has a slot in a Fenwick tree of ticket counts, so drawing
+	 * the winner and changing a waiter's tickets both take O(log n) time. The
+	 * slots of waiters that have left are reused.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			Entry entry = new Entry(state, this, allocateSlot());
+			entries[entry.slot] = entry;
+
+			state.waitingIn.add(entry);
+			changeTickets(entry, state.effectiveTickets);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			if (holder != null)
+				holder.release(this);
+
+			holder = getLotteryState(thread);
+			holder.acquire(this);
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			Entry winner = pickNextEntry();
+			if (winner == null)
+				return null;
+
+			changeTickets(winner, -winner.tickets);
+			entries[winner.slot] = null;
+			freeSlots[numFreeSlots++] = winner.slot;
+			numWaiting--;
+
+			acquire(winner.state.thread);
+
+			return winner.state.thread;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int slot = 1; slot <= capacity; slot++) {
+				if (entries[slot] != null)
+					System.out.print(entries[slot].state.thread + "("
+							+ entries[slot].tickets + ") ");
+			}
+			System.out.println();
+		}
+
+		/**
+		 * Hold the lottery, without modifying the state of this queue.
+		 * 
+		 * @return the winning waiter, or <tt>null</tt> if there are none.
+		 */
+		private Entry pickNextEntry() {
+			if (numWaiting == 0)
+				return null;
+
+			long ticket;
+			if (totalTickets <= Integer.MAX_VALUE)
+				ticket = Lib.random((int) totalTickets);
+			else
+				ticket = Math.min((long) (Lib.random() * totalTickets),
+						totalTickets - 1);
+
+			// find the first slot whose running sum passes the ticket
+			int slot = 0;
+			for (int bit = capacity; bit > 0; bit >>= 1) {
+				if (slot + bit <= capacity && tree[slot + bit] <= ticket) {
+					slot += bit;
+					ticket -= tree[slot];
+				}
+			}
+
+			return entries[slot + 1];
+		}
+
+		/**
+		 * Add <i>delta</i> to the tickets of a waiter, and pass the change on
+		 * to the holder if this queue transfers tickets.
+		 */
+		void changeTickets(Entry entry, long delta) {
+			if (delta == 0)
+				return;
+
+			entry.tickets += delta;
+			totalTickets += delta;
+			for (int i = entry.slot; i <= capacity; i += i & -i)
+				tree[i] += delta;
+
+			if (transferPriority && holder != null)
+				holder.changeTickets(delta);
+		}
+
+		private int allocateSlot() {
+			numWaiting++;
+			if (numFreeSlots > 0)
+				return freeSlots[--numFreeSlots];
+
+			if (numWaiting > capacity) {
+				// double the tree, and rebuild it around the same slots
+				Entry[] oldEntries = entries;
+
+				capacity *= 2;
+				tree = new long[capacity + 1];
+				entries = new Entry[capacity + 1];
+				freeSlots = new int[capacity];
+
+				for (int slot = 1; slot < oldEntries.length; slot++) {
+					entries[slot] = oldEntries[slot];
+					if (entries[slot] != null) {
+						for (int i = slot; i <= capacity; i += i & -i)
+							tree[i] += entries[slot].tickets;
+					}
+				}
+			}
+
+			return numWaiting;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The thread holding the resource, if any. */
+		private LotteryState holder = null;
+
+		/** The number of slots, a power of two. */
+		private int capacity = initialCapacity;
+
+		/** The Fenwick tree over the tickets in each slot, from slot 1. */
+		private long[] tree = new long[initialCapacity + 1];
+
+		/** The waiter in each slot, or <tt>null</tt>. */
+		private Entry[] entries = new Entry[initialCapacity + 1];
+
+		/** Slots below <tt>numWaiting + numFreeSlots</tt> that are empty. */
+		private int[] freeSlots = new int[initialCapacity];
+
+		private int numFreeSlots = 0;
+
+		private int numWaiting = 0;
+
+		private long totalTickets = 0;
+
+		private static final int initialCapacity = 8;
+	}
+
+	/**
+	 * A thread's place in a <tt>LotteryQueue</tt>.
+	 */
+	protected static class Entry {
+		Entry(LotteryState state, LotteryQueue queue, int slot) {
+			this.state = state;
+			this.queue = queue;
+			this.slot = slot;
+		}
+
+		final LotteryState state;
+
+		final LotteryQueue queue;
+
+		final int slot;
+
+		/** The tickets this waiter holds in the lottery. */
+		long tickets = 0;
+	}
+
+	/**
+	 * The scheduling state of a thread: its own tickets, and its effective
+	 * tickets, which add those of every thread waiting on a queue it holds.
+	 * 
+	 * <p>
+	 * Effective tickets are kept up to date. A change is added to each queue
+	 * the thread waits on, and from there to the holder, all the way up the
+	 * chain. A chain that leads back to a thread already being updated is a
+	 * deadlock, and the walk stops there instead of going around forever.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+
+			setTickets(priorityDefault);
+		}
+
+		/**
+		 * Give the associated thread <i>tickets</i> tickets of its own.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+			changeTickets(delta);
+		}
+
+		/**
+		 * Called when the associated thread is given the resource guarded by
+		 * <i>queue</i>.
+		 */
+		void acquire(LotteryQueue queue) {
+			for (Iterator<Entry> i = waitingIn.iterator(); i.hasNext();) {
+				if (i.next().queue == queue) {
+					i.remove();
+					break;
+				}
+			}
+
+			if (queue.transferPriority)
+				changeTickets(queue.totalTickets);
+		}
+
+		/**
+		 * Called when the associated thread gives up the resource guarded by
+		 * <i>queue</i>.
+		 */
+		void release(LotteryQueue queue) {
+			if (queue.transferPriority)
+				changeTickets(-queue.totalTickets);
+		}
+
+		/**
+		 * Add <i>delta</i> to the effective tickets of the associated thread,
+		 * and to its place in each queue it waits on.
+		 */
+		void changeTickets(long delta) {
+			if (delta == 0 || updating)
+				return;
+
+			updating = true;
+			effectiveTickets += delta;
+			for (Iterator<Entry> i = waitingIn.iterator(); i.hasNext();) {
+				Entry entry = i.next();
+				entry.queue.changeTickets(entry, delta);
+			}
+			updating = false;
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets = 0;
+
+		/** The tickets of the associated thread, plus those donated to it. */
+		protected long effectiveTickets = 0;
+
+		/** The places of the associated thread in the queues it waits on. */
+		protected LinkedList<Entry> waitingIn = new LinkedList<Entry>();
+
+		private boolean updating = false;
 	}
 }
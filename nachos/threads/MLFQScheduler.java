@@ -0,0 +1,243 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A multi-level feedback queue scheduler. Ready threads wait in one FIFO
+ * queue per level, and the next thread to run is the first thread of the
+ * highest non-empty level. Every other queue is a FIFO queue, as in a
+ * round-robin scheduler.
+ *
+ * <p>
+ * A thread's level follows how it uses the processor, as measured by the
+ * timer. Each level has a quantum, twice as long as that of the level above
+ * it. A thread that has run for its whole quantum by the time it yields, or
+ * is preempted by <tt>Alarm.timerInterrupt()</tt>, moves down a level. A
+ * thread that gives up the processor to block, for example in
+ * <tt>Semaphore.P()</tt>, <tt>Lock.acquire()</tt> or a console read, before
+ * using its quantum moves up a level. Every so often all threads are put back
+ * on the top level, so that a thread that has been moved down cannot starve.
+ *
+ * <p>
+ * The number of levels, the quantum of the top level and the time between
+ * resets are read from <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum</tt> and <tt>MLFQScheduler.resetInterval</tt> in
+ * <tt>nachos.conf</tt>, in ticks.
+ */
+public class MLFQScheduler extends RoundRobinScheduler {
+	/**
+	 * Allocate a new multi-level feedback queue scheduler.
+	 */
+	public MLFQScheduler() {
+		numLevels = Config.getInteger("MLFQScheduler.levels", 4);
+		quantum = Config.getInteger("MLFQScheduler.quantum", Stats.TimerTicks);
+		resetInterval = Config.getInteger("MLFQScheduler.resetInterval",
+				100 * Stats.TimerTicks);
+
+		Lib.assertTrue(numLevels > 0 && numLevels < 32 && quantum > 0
+				&& resetInterval > 0);
+	}
+
+	/**
+	 * Allocate the multi-level ready queue.
+	 *
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return new FeedbackQueue();
+	}
+
+	/**
+	 * Return the priority of a thread, which is higher for higher levels: the
+	 * top level has priority <tt>MLFQScheduler.levels - 1</tt>, and the bottom
+	 * level has priority 0. A thread woken up on a higher level than the
+	 * current thread therefore preempts it at the next timer interrupt.
+	 *
+	 * @param thread the thread to get the priority of.
+	 * @return the thread's priority.
+	 */
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		return numLevels - 1 - getThreadState(thread).getLevel();
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		return getPriority(thread);
+	}
+
+	private ThreadState getThreadState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new ThreadState();
+
+		return (ThreadState) thread.schedulingState;
+	}
+
+	private class FeedbackQueue extends ThreadQueue {
+		FeedbackQueue() {
+			for (int i = 0; i < numLevels; i++)
+				levels.add(new LinkedList<KThread>());
+		}
+
+		/**
+		 * Add a thread to the end of the queue for its level. If the thread is
+		 * the current thread, it is yielding, so charge it for the time it
+		 * ran first.
+		 *
+		 * @param thread the thread to append to the queue.
+		 */
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			ThreadState state = getThreadState(thread);
+			if (state.dispatchTime >= 0)
+				state.yielded(Machine.timer().getTime());
+
+			levels.get(state.getLevel()).add(thread);
+		}
+
+		/**
+		 * Remove the first thread of the highest non-empty level. If the
+		 * current thread did not yield, it is blocking or finishing, so charge
+		 * it for the time it ran first.
+		 *
+		 * @return the thread to run next, or <tt>null</tt> if there are no
+		 * ready threads.
+		 */
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			long time = Machine.timer().getTime();
+
+			ThreadState current = getThreadState(KThread.currentThread());
+			if (current.dispatchTime >= 0)
+				current.blocked(time);
+
+			if (time - lastReset >= resetInterval)
+				reset(time);
+
+			for (int i = 0; i < numLevels; i++) {
+				LinkedList<KThread> level = levels.get(i);
+				if (!level.isEmpty()) {
+					KThread thread = level.removeFirst();
+					getThreadState(thread).dispatchTime = time;
+					return thread;
+				}
+			}
+
+			return null;
+		}
+
+		/**
+		 * The first thread is given the processor without being dispatched by
+		 * <tt>nextThread()</tt>. Assert that no threads are ready.
+		 */
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++)
+				Lib.assertTrue(levels.get(i).isEmpty());
+		}
+
+		/**
+		 * Print out the contents of the queue, one line per level.
+		 */
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < numLevels; i++) {
+				System.out.print(i + ":");
+				for (Iterator<KThread> j = levels.get(i).iterator(); j.hasNext();)
+					System.out.print(" " + j.next());
+				System.out.println();
+			}
+		}
+
+		/**
+		 * Put every thread back on the top level. Ready threads keep their
+		 * order; the others find out when they next ask for their level.
+		 */
+		private void reset(long time) {
+			lastReset = time;
+			resetEpoch++;
+
+			LinkedList<KThread> top = levels.get(0);
+			for (int i = 1; i < numLevels; i++) {
+				top.addAll(levels.get(i));
+				levels.get(i).clear();
+			}
+		}
+
+		private ArrayList<LinkedList<KThread>> levels = new ArrayList<LinkedList<KThread>>();
+
+		private long lastReset = 0;
+	}
+
+	private class ThreadState {
+		/**
+		 * Return this thread's level, moving it to the top level if there has
+		 * been a reset since it last asked.
+		 */
+		int getLevel() {
+			if (epoch != resetEpoch) {
+				epoch = resetEpoch;
+				level = 0;
+				used = 0;
+			}
+
+			return level;
+		}
+
+		/**
+		 * The thread is giving up the processor while still ready to run.
+		 * Move it down a level if it has used its quantum.
+		 */
+		void yielded(long time) {
+			used += time - dispatchTime;
+			dispatchTime = -1;
+
+			if (used >= (long) quantum << getLevel()) {
+				level = Math.min(level + 1, numLevels - 1);
+				used = 0;
+			}
+		}
+
+		/**
+		 * The thread is giving up the processor to wait for something. Move it
+		 * up a level, unless it has used its quantum.
+		 */
+		void blocked(long time) {
+			used += time - dispatchTime;
+			dispatchTime = -1;
+
+			if (used >= (long) quantum << getLevel())
+				level = Math.min(level + 1, numLevels - 1);
+			else
+				level = Math.max(level - 1, 0);
+			used = 0;
+		}
+
+		/** The level of the thread, 0 being the top. */
+		private int level = 0;
+
+		/** The ticks the thread has run on its level. */
+		private long used = 0;
+
+		/** When the thread was last dispatched, or -1 if it is not running. */
+		private long dispatchTime = -1;
+
+		/** The reset this thread's level was last checked against. */
+		private int epoch = resetEpoch;
+	}
+
+	private int numLevels;
+
+	private int quantum;
+
+	private int resetInterval;
+
+	private int resetEpoch = 0;
+}
@@ -106,19 +106,33 @@ public class PriorityScheduler extends Scheduler {
 
     /**
      * A <tt>ThreadQueue</tt> that sorts threads by priority.
+     *
+     * The waiting threads are kept in one FIFO list per priority level, with
+     * a bitmap of the levels that have waiters, so the next thread and the
+     * highest priority waiting are found without looking at the other
+     * waiters. A waiter whose effective priority changes is moved to its new
+     * level right away.
      */
     protected class PriorityQueue extends ThreadQueue {
 
         PriorityQueue(boolean transferPriority) {
             this.transferPriority = transferPriority;
-            this.threadsWaiting = new LinkedList<ThreadState>();
+            this.levels = new Waiter[priorityMaximum - priorityMinimum + 1];
+            for (int i = 0; i < this.levels.length; i++) {
+                this.levels[i] = new Waiter(null, this);
+            }
         }
 
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             final ThreadState ts = getThreadState(thread);
-            this.threadsWaiting.add(ts);
-            ts.waitForAccess(this);
+            final Waiter waiter = new Waiter(ts, this);
+            waiter.order = this.nextOrder++;
+
+            final int oldPriority = this.getEffectivePriority();
+            this.insert(waiter, ts.getEffectivePriority());
+            ts.waitForAccess(waiter);
+            this.donationChanged(oldPriority);
         }
 
         public void acquire(KThread thread) {
@@ -135,17 +149,17 @@ public class PriorityScheduler extends Scheduler {
             Lib.assertTrue(Machine.interrupt().disabled());
 
             // Pick the next thread
-            final ThreadState nextThread = this.pickNextThread();
-
-            if (nextThread == null) return null;
+            if (this.waitingLevels == 0) return null;
+            final Waiter next = this.levels[this.highestLevel()].next;
 
-            // Remove the next thread from the queue
-            this.threadsWaiting.remove(nextThread);
+            // Remove the next thread from the queue. The holder is about to
+            // change, so its donation is settled by acquire().
+            this.remove(next);
 
             // Give nextThread the resource
-            this.acquire(nextThread.getThread());
+            this.acquire(next.state.getThread());
 
-            return nextThread.getThread();
+            return next.state.getThread();
         }
 
         /** For testing! **/
@@ -160,76 +174,117 @@ public class PriorityScheduler extends Scheduler {
          * @return the next thread that <tt>nextThread()</tt> would return.
          */
         protected ThreadState pickNextThread() {
-            int nextPriority = priorityMinimum;
-            ThreadState next = null;
-            for (Iterator<ThreadState> it = this.threadsWaiting.iterator(); it.hasNext();) {
-                final ThreadState currThread = it.next();
-                int currPriority = currThread.getEffectivePriority();
-                if (next == null || (currPriority > nextPriority)) {
-                    next = currThread;
-                    nextPriority = currPriority;
-                }
-            }
-            return next;
+            if (this.waitingLevels == 0) return null;
+            return this.levels[this.highestLevel()].next.state;
         }
 
         /**
-         * This method returns the effectivePriority of this PriorityQueue.
-         * The return value is cached for as long as possible. If the cached value
-         * has been invalidated, this method will spawn a series of mutually
-         * recursive calls needed to recalculate effectivePriorities across the
-         * entire resource graph.
+         * This method returns the effectivePriority of this PriorityQueue,
+         * which is the highest effective priority among its waiters, or
+         * <tt>priorityMinimum</tt> if it does not transfer priority.
          * @return the effective priority of this queue.
          */
         public int getEffectivePriority() {
-            if (!this.transferPriority) {
+            if (!this.transferPriority || this.waitingLevels == 0) {
                 return priorityMinimum;
-            } else if (this.priorityChange) {
-                // Recalculate effective priorities
-                this.effectivePriority = priorityMinimum;
-                for (Iterator<ThreadState> it = this.threadsWaiting.iterator(); it.hasNext();) {
-                    final ThreadState curr = it.next();
-                    this.effectivePriority = Math.max(this.effectivePriority, curr.getEffectivePriority());
-                }
-                this.priorityChange = false;
             }
-            return effectivePriority;
+            return priorityMinimum + this.highestLevel();
         }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            for (Iterator<ThreadState> it = this.threadsWaiting.iterator(); it.hasNext();) {
-                final ThreadState ts = it.next();
-                System.out.println(ts.getEffectivePriority());
+            for (int level = this.levels.length - 1; level >= 0; level--) {
+                final Waiter head = this.levels[level];
+                for (Waiter w = head.next; w != head; w = w.next) {
+                    System.out.println(w.state.getEffectivePriority());
+                }
             }
         }
 
-        private void invalidateCachedPriority() {
-            if (!this.transferPriority) return;
+        /**
+         * Called when the effective priority of a waiting thread has changed.
+         * Moves the waiter to its new level, and passes any change in this
+         * queue's effective priority on to the holder.
+         *
+         * @param waiter the waiter whose priority has changed.
+         */
+        void waiterChanged(Waiter waiter) {
+            // the waiter may have been picked, and not yet have acquired
+            if (waiter.prev == null) return;
+
+            final int oldPriority = this.getEffectivePriority();
+            this.remove(waiter);
+            this.insert(waiter, waiter.state.getEffectivePriority());
+            this.donationChanged(oldPriority);
+        }
 
-            this.priorityChange = true;
+        /**
+         * Tell the holder if the effective priority of this queue is no
+         * longer <tt>oldPriority</tt>.
+         */
+        private void donationChanged(int oldPriority) {
+            if (!this.transferPriority || this.resourceHolder == null) return;
 
-            if (this.resourceHolder != null) {
-                resourceHolder.invalidateCachedPriority();
+            final int newPriority = this.getEffectivePriority();
+            if (newPriority != oldPriority) {
+                this.resourceHolder.donationChanged(oldPriority, newPriority);
             }
         }
 
         /**
-         * The list of threads currently waiting.
+         * Add a waiter to the level for <tt>priority</tt>, behind every waiter
+         * there that has been waiting longer.
          */
-        protected final LinkedList<ThreadState> threadsWaiting;
+        private void insert(Waiter waiter, int priority) {
+            waiter.level = priority - priorityMinimum;
+            final Waiter head = this.levels[waiter.level];
+
+            Waiter before = head.prev;
+            while (before != head && before.order > waiter.order) {
+                before = before.prev;
+            }
+
+            waiter.prev = before;
+            waiter.next = before.next;
+            before.next.prev = waiter;
+            before.next = waiter;
+
+            this.waitingLevels |= 1 << waiter.level;
+        }
+
+        private void remove(Waiter waiter) {
+            waiter.prev.next = waiter.next;
+            waiter.next.prev = waiter.prev;
+            waiter.prev = null;
+            waiter.next = null;
+
+            final Waiter head = this.levels[waiter.level];
+            if (head.next == head) {
+                this.waitingLevels &= ~(1 << waiter.level);
+            }
+        }
+
+        private int highestLevel() {
+            return 31 - Integer.numberOfLeadingZeros(this.waitingLevels);
+        }
+
         /**
-         * A reference to the thread currently holding the resource.
+         * The waiting threads, one list per priority level. Each list is
+         * circular, and starts and ends at a head that is not a waiter.
          */
-        protected ThreadState resourceHolder = null;
+        private final Waiter[] levels;
         /**
-         * The cached effective priority of this queue.
+         * Bit <i>i</i> is set if level <i>i</i> has waiters.
          */
-        protected int effectivePriority = priorityMinimum;
+        private int waitingLevels = 0;
         /**
-         * True if the effective priority of this queue has been invalidated.
+         * The order in which the next waiter arrives.
          */
-        protected boolean priorityChange = false;
+        private long nextOrder = 0;
+        /**
+         * A reference to the thread currently holding the resource.
+         */
+        protected ThreadState resourceHolder = null;
         /**
          * <tt>true</tt> if this queue should transfer priority from waiting
          * threads to the owning thread.
@@ -237,11 +292,43 @@ public class PriorityScheduler extends Scheduler {
         public boolean transferPriority;
     }
 
+    /**
+     * A thread waiting in a <tt>PriorityQueue</tt>.
+     */
+    protected class Waiter {
+        Waiter(ThreadState state, PriorityQueue queue) {
+            this.state = state;
+            this.queue = queue;
+            if (state == null) {
+                // the head of a level
+                this.prev = this;
+                this.next = this;
+            }
+        }
+
+        /** The waiting thread. */
+        final ThreadState state;
+        /** The queue it is waiting in. */
+        final PriorityQueue queue;
+        /** The level it is in, and the order in which it arrived. */
+        int level;
+        long order;
+        /** Its neighbors in its level, or <tt>null</tt> once it has left. */
+        Waiter prev = null, next = null;
+    }
+
     /**
      * The scheduling state of a thread. This should include the thread's
      * priority, its effective priority, any objects it owns, and the queue
      * it's waiting for, if any.
      *
+     * The effective priority is kept up to date. When it changes, the change
+     * is passed to the queues the thread waits on, and from them to their
+     * holders, stopping at the first thread whose effective priority stays
+     * the same. Effective priorities only move one way during such a walk,
+     * and there are few of them, so the walk ends even if the holders wait on
+     * each other in a cycle.
+     *
      * @see nachos.threads.KThread#schedulingState
      */
     protected class ThreadState {
@@ -255,7 +342,7 @@ public class PriorityScheduler extends Scheduler {
             this.thread = thread;
 
             this.resourcesIHave = new LinkedList<PriorityQueue>();
-            this.resourcesIWant = new LinkedList<PriorityQueue>();
+            this.resourcesIWant = new LinkedList<Waiter>();
 
             setPriority(priorityDefault);
         }
@@ -275,16 +362,6 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            if (this.resourcesIHave.isEmpty()) {
-                return this.getPriority();
-            } else if (this.priorityChange) {
-                this.effectivePriority = this.getPriority();
-                for (Iterator<PriorityQueue> it = this.resourcesIHave.iterator(); it.hasNext();) {
-                    final PriorityQueue pq = it.next();
-                    this.effectivePriority = Math.max(this.effectivePriority, pq.getEffectivePriority());
-                }
-                this.priorityChange = false;
-            }
             return this.effectivePriority;
         }
 
@@ -296,12 +373,9 @@ public class PriorityScheduler extends Scheduler {
         public void setPriority(int priority) {
             if (this.priority == priority)
                 return;
+            final int oldPriority = this.priority;
             this.priority = priority;
-            // force priority invalidation
-            for (Iterator<PriorityQueue> it = resourcesIWant.iterator(); it.hasNext();) {
-                final PriorityQueue pq = it.next();
-                pq.invalidateCachedPriority();
-            }
+            this.donationChanged(oldPriority, priority);
         }
 
         /**
@@ -311,15 +385,13 @@ public class PriorityScheduler extends Scheduler {
          * resource guarded by <tt>waitQueue</tt>. This method is only called
          * if the associated thread cannot immediately obtain access.
          *
-         * @param waitQueue the queue that the associated thread is
-         *                  now waiting on.
+         * @param waiter the associated thread's place in the queue it is
+         *               now waiting on.
          * @see nachos.threads.ThreadQueue#waitForAccess
          */
-        public void waitForAccess(PriorityQueue waitQueue) {
+        public void waitForAccess(Waiter waiter) {
             // Add myself to the list of threads waiting
-            this.resourcesIWant.add(waitQueue);
-            
-            waitQueue.invalidateCachedPriority();
+            this.resourcesIWant.add(waiter);
         }
 
         /**
@@ -333,31 +405,60 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            this.resourcesIWant.remove(waitQueue);
+            for (Iterator<Waiter> it = this.resourcesIWant.iterator(); it.hasNext();) {
+                if (it.next().queue == waitQueue) {
+                    it.remove();
+                    break;
+                }
+            }
+            // Queues that don't transfer priority never donate any
+            if (!waitQueue.transferPriority) return;
             this.resourcesIHave.add(waitQueue);
-            this.invalidateCachedPriority();
+            this.donationChanged(priorityMinimum, waitQueue.getEffectivePriority());
         }
         
         /** 
          * Called when the associated thread releases <tt>waitQueue</tt>. 
          */
         public void release(PriorityQueue waitQueue) {
+            if (!waitQueue.transferPriority) return;
             this.resourcesIHave.remove(waitQueue);
-            this.invalidateCachedPriority();
+            // The donation we had from the queue is unknown, so recompute
+            this.setEffectivePriority(this.computeEffectivePriority());
         }
-        
+
         /**
-         * Invalidate our cached priority
+         * Called when one of the priorities our effective priority is the
+         * maximum of, either our own or a donation, goes from
+         * <tt>oldPriority</tt> to <tt>newPriority</tt>.
          */
-        private void invalidateCachedPriority() {
-            if (this.priorityChange) return;
-            
-            this.priorityChange = true;
-            
-            // Propagate the invalidation
-            for (Iterator<PriorityQueue> it = this.resourcesIWant.iterator(); it.hasNext();) {
+        private void donationChanged(int oldPriority, int newPriority) {
+            if (newPriority > this.effectivePriority) {
+                this.setEffectivePriority(newPriority);
+            } else if (oldPriority == this.effectivePriority && newPriority < oldPriority) {
+                // We may have lost our highest donation
+                this.setEffectivePriority(this.computeEffectivePriority());
+            }
+        }
+
+        private int computeEffectivePriority() {
+            int effective = this.priority;
+            for (Iterator<PriorityQueue> it = this.resourcesIHave.iterator(); it.hasNext();) {
                 final PriorityQueue pq = it.next();
-                pq.invalidateCachedPriority();
+                effective = Math.max(effective, pq.getEffectivePriority());
+            }
+            return effective;
+        }
+
+        private void setEffectivePriority(int effectivePriority) {
+            if (this.effectivePriority == effectivePriority) return;
+
+            this.effectivePriority = effectivePriority;
+
+            // Propagate the change
+            for (Iterator<Waiter> it = this.resourcesIWant.iterator(); it.hasNext();) {
+                final Waiter waiter = it.next();
+                waiter.queue.waiterChanged(waiter);
             }
         }
 
@@ -371,11 +472,9 @@ public class PriorityScheduler extends Scheduler {
         protected int priority;
         /** The effective priority of the associated thread. */
         protected int effectivePriority;
-        /** If our effective priority has been invalidated. */
-        protected boolean priorityChange = false;
         /** The queues I have (I hold the associated resource) */
         protected LinkedList<PriorityQueue> resourcesIHave;
-        /** The queues I'm waiting for (I'm blocked on the associated resource) */
-        protected LinkedList<PriorityQueue> resourcesIWant;
+        /** My places in the queues I'm waiting for (I'm blocked on the associated resource) */
+        protected LinkedList<Waiter> resourcesIWant;
     }
-}
\ No newline at end of file
+}
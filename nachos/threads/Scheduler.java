@@ -50,6 +50,19 @@ public abstract class Scheduler {
 	 */
 	public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+	/**
+	 * Allocate the queue of threads that are ready to run, which
+	 * <tt>KThread</tt> calls once. A scheduler that treats the processor
+	 * differently from other resources, for example by tracking how long each
+	 * thread runs, can override this. By default it returns
+	 * <tt>newThreadQueue(false)</tt>.
+	 * 
+	 * @return a new ready queue.
+	 */
+	public ThreadQueue newReadyQueue() {
+		return newThreadQueue(false);
+	}
+
 	/**
 	 * Get the priority of the specified thread. Must be called with interrupts
 	 * disabled.
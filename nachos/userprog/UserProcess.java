@@ -153,14 +153,15 @@ public class UserProcess {
         Lib.assertTrue(offset >= 0 && length >= 0
                 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
+        int memorySize = processor.getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memorySize)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(memory, vaddr, data, offset, amount);
+        int amount = Math.min(length, memorySize - vaddr);
+        processor.readPhysicalMemory(vaddr, data, offset, amount);
 
         return amount;
     }
@@ -195,14 +196,15 @@ public class UserProcess {
         Lib.assertTrue(offset >= 0 && length >= 0
                 && offset + length <= data.length);
 
-        byte[] memory = Machine.processor().getMemory();
+        Processor processor = Machine.processor();
+        int memorySize = processor.getNumPhysPages() * pageSize;
 
         // for now, just assume that virtual addresses equal physical addresses
-        if (vaddr < 0 || vaddr >= memory.length)
+        if (vaddr < 0 || vaddr >= memorySize)
             return 0;
 
-        int amount = Math.min(length, memory.length - vaddr);
-        System.arraycopy(data, offset, memory, vaddr, amount);
+        int amount = Math.min(length, memorySize - vaddr);
+        processor.writePhysicalMemory(vaddr, data, offset, amount);
 
         return amount;
     }